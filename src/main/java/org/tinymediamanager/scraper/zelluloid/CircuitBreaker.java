@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+/**
+ * The Class CircuitBreaker. A simple circuit breaker for one host.<br>
+ * After <i>threshold</i> consecutive failures the breaker opens and all requests are rejected. After <i>openTime</i> one
+ * trial request is let through (half open); its outcome closes or re-opens the breaker.
+ */
+class CircuitBreaker {
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final String host;
+  private final int    threshold;
+  private final long   openTime;
+
+  private State        state    = State.CLOSED;
+  private int          failures = 0;
+  private long         openedAt = 0;
+
+  CircuitBreaker(String host, int threshold, long openTime) {
+    this.host = host;
+    this.threshold = threshold;
+    this.openTime = openTime;
+  }
+
+  /**
+   * restores a breaker from a snapshot
+   */
+  CircuitBreaker(String host, int threshold, long openTime, State state, int failures, long openedAt) {
+    this(host, threshold, openTime);
+    this.state = state;
+    this.failures = failures;
+    this.openedAt = openedAt;
+  }
+
+  /**
+   * is a request allowed right now?
+   *
+   * @return true if the request may be sent
+   */
+  synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+
+      case OPEN:
+      case HALF_OPEN:
+        // let one trial through after the open time (again, if the last trial never reported back)
+        if (System.currentTimeMillis() - openedAt >= openTime) {
+          state = State.HALF_OPEN;
+          openedAt = System.currentTimeMillis();
+          return true;
+        }
+        return false;
+
+      default:
+        return false;
+    }
+  }
+
+  synchronized void success() {
+    failures = 0;
+    state = State.CLOSED;
+  }
+
+  synchronized void failure() {
+    failures++;
+    if (state == State.HALF_OPEN || failures >= threshold) {
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * opens the breaker for the given time, regardless of the failures so far (the host asked us to stay away)
+   *
+   * @param time
+   *          the time in ms until the next trial request
+   */
+  synchronized void openFor(long time) {
+    state = State.OPEN;
+    // the next trial goes through openTime after openedAt - which may lie in the future for a longer break
+    openedAt = System.currentTimeMillis() + time - openTime;
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  synchronized int getFailures() {
+    return failures;
+  }
+
+  synchronized long getOpenedAt() {
+    return openedAt;
+  }
+
+  String getHost() {
+    return host;
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Class DaemonThreadFactory. Creates named daemon threads for the pools of the scraper, so a pending fetch never blocks
+ * the shutdown.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+  private final String        prefix;
+  private final AtomicInteger counter = new AtomicInteger();
+
+  DaemonThreadFactory(String prefix) {
+    this.prefix = prefix;
+  }
+
+  @Override
+  public Thread newThread(Runnable r) {
+    Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  }
+}
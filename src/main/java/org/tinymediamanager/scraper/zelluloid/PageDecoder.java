@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class PageDecoder. Reads a page into a pooled byte buffer and decodes it to a String.<br>
+ * <br>
+ * The buffer is sized by the Content-Length (if known, but never bigger than the largest pooled buffer up front), so a
+ * page is usually read without growing and copying. The charset is taken from the Content-Type header of the response
+ * (if given), then from a meta tag in the page, and falls back to the default of the page type.
+ */
+class PageDecoder {
+  private static final Logger  LOGGER          = LoggerFactory.getLogger(PageDecoder.class);
+  private static final int     DEFAULT_SIZE    = 64 * 1024;
+  // do not keep huge buffers in the pool
+  private static final int     MAX_POOLED_SIZE = 1024 * 1024;
+  private static final int     MAX_POOLED      = 8;
+  private static final int     SNIFF_LENGTH    = 2048;
+  private static final Pattern META_CHARSET    = Pattern.compile("(?i)<meta[^>]+charset\\s*=\\s*[\"']?([\\w.:-]+)");
+  private static final Pattern HEADER_CHARSET  = Pattern.compile("(?i);\\s*charset\\s*=\\s*\"?([\\w.:-]+)");
+  private static final Charset LATIN1          = Charset.forName("ISO-8859-1");
+
+  private final Queue<byte[]>  bytePool        = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger  pooledBytes     = new AtomicInteger();
+
+  /**
+   * reads the stream completely and decodes it
+   *
+   * @param in
+   *          the stream to read (not closed here)
+   * @param contentLength
+   *          the Content-Length of the response; 0 or less if unknown
+   * @param serverCharset
+   *          the charset of the Content-Type header; may be null
+   * @param defaultCharset
+   *          the charset to use if neither server nor page declare one
+   * @return the decoded page
+   * @throws IOException
+   *           on read errors
+   */
+  String decode(InputStream in, long contentLength, String serverCharset, String defaultCharset) throws IOException {
+    // a wrong or hostile Content-Length must not allocate more than that up front; bigger pages grow the buffer
+    int expected = contentLength > 0 ? (int) Math.min(contentLength + 1, MAX_POOLED_SIZE) : DEFAULT_SIZE;
+    byte[] buffer = acquireBytes(expected);
+    try {
+      // read the whole response; grow only if the Content-Length was missing, wrong or above the cap
+      int len = 0;
+      int read;
+      while ((read = in.read(buffer, len, buffer.length - len)) != -1) {
+        len += read;
+        if (len == buffer.length) {
+          byte[] bigger = new byte[buffer.length * 2];
+          System.arraycopy(buffer, 0, bigger, 0, len);
+          releaseBytes(buffer);
+          buffer = bigger;
+        }
+      }
+
+      return new String(buffer, 0, len, detectCharset(buffer, len, serverCharset, defaultCharset));
+    }
+    finally {
+      releaseBytes(buffer);
+    }
+  }
+
+  /**
+   * gets the charset out of a Content-Type header
+   *
+   * @param contentType
+   *          the Content-Type, like text/html; charset=iso-8859-1; may be null
+   * @return the charset or null, if there is none
+   */
+  static String getCharset(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    Matcher m = HEADER_CHARSET.matcher(contentType);
+    return m.find() ? m.group(1) : null;
+  }
+
+  /**
+   * server charset > meta tag > default
+   */
+  Charset detectCharset(byte[] bytes, int len, String serverCharset, String defaultCharset) {
+    Charset charset = forName(serverCharset);
+    if (charset != null) {
+      return charset;
+    }
+
+    // the head is plain ASCII in all charsets we care about
+    Matcher m = META_CHARSET.matcher(new String(bytes, 0, Math.min(len, SNIFF_LENGTH), LATIN1));
+    if (m.find()) {
+      charset = forName(m.group(1));
+      if (charset != null) {
+        return charset;
+      }
+    }
+
+    charset = forName(defaultCharset);
+    return charset != null ? charset : LATIN1;
+  }
+
+  private Charset forName(String name) {
+    if (StringUtils.isBlank(name)) {
+      return null;
+    }
+    try {
+      return Charset.forName(name.trim());
+    }
+    catch (Exception e) {
+      LOGGER.debug("unknown charset " + name);
+      return null;
+    }
+  }
+
+  private byte[] acquireBytes(int size) {
+    byte[] buffer = bytePool.poll();
+    if (buffer != null) {
+      pooledBytes.decrementAndGet();
+      if (buffer.length >= size) {
+        return buffer;
+      }
+    }
+    return new byte[Math.max(size, DEFAULT_SIZE)];
+  }
+
+  private void releaseBytes(byte[] buffer) {
+    if (buffer.length <= MAX_POOLED_SIZE && pooledBytes.incrementAndGet() <= MAX_POOLED) {
+      bytePool.offer(buffer);
+    }
+    else {
+      pooledBytes.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.tinymediamanager.scraper.util.MetadataUtil;
+
+/**
+ * The Class SearchRanker. Scores search results against the search term; the name similarity of
+ * {@link MetadataUtil#calculateScore(String, String)}, but
+ * <ul>
+ * <li>all strings are normalized (case, accents, punctuation) once and cached, as are the scores of query/title pairs -
+ * batch imports ask for the same pairs over and over</li>
+ * <li>titles sharing (almost) no trigram with the search term or differing too much in length are not compared in full,
+ * but get a cheap estimate (below 0.1) - unless one contains the other as whole words, like "Alien" and "Alien - Das
+ * unheimliche Wesen aus einer fremden Welt"</li>
+ * <li>a title with a subtitle ("Léon - Der Profi") is scored by its main title too, so a long (german) subtitle does not
+ * push the right result below a short similar title</li>
+ * <li>a result may be scored with other titles (its original title) too; the best one counts</li>
+ * </ul>
+ * Thread safe; the caches are simply dropped when full.
+ */
+class SearchRanker {
+  private static final int                             MAX_CACHE_SIZE = 10000;
+  // below that, the full comparison is skipped
+  private static final float                           MIN_OVERLAP    = 0.1f;
+  private static final float                           MIN_LENGTH     = 0.3f;
+  // a match of the main title ranks just below a match of the full title
+  private static final float                           SUBTITLE_MATCH = 0.95f;
+  private static final Pattern                         SUBTITLE       = Pattern.compile("\\s+-\\s+|:\\s+");
+
+  private final ConcurrentMap<String, NormalizedTitle> normalized     = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Float>           scores         = new ConcurrentHashMap<>();
+
+  /**
+   * scores the result title (and the other titles of the result) against the search term
+   *
+   * @param searchTerm
+   *          the search term
+   * @param title
+   *          the title of the result
+   * @param otherTitles
+   *          other titles of the result, like the original title (may be null or contain nulls)
+   * @return the best score, 0 - 1
+   */
+  float score(String searchTerm, String title, Collection<String> otherTitles) {
+    float score = score(searchTerm, title);
+    if (otherTitles != null) {
+      for (String other : otherTitles) {
+        score = Math.max(score, score(searchTerm, other));
+      }
+    }
+    return score;
+  }
+
+  /**
+   * scores one title against the search term
+   *
+   * @param searchTerm
+   *          the search term
+   * @param title
+   *          the title
+   * @return the score, 0 - 1
+   */
+  float score(String searchTerm, String title) {
+    if (StringUtils.isBlank(searchTerm) || StringUtils.isBlank(title)) {
+      return 0;
+    }
+
+    String key = searchTerm + '\u0000' + title;
+    Float score = scores.get(key);
+    if (score == null) {
+      NormalizedTitle query = normalize(searchTerm);
+      score = compare(query, normalize(title));
+      String[] parts = SUBTITLE.split(title, 2);
+      if (parts.length > 1 && StringUtils.isNotBlank(parts[0])) {
+        score = Math.max(score, compare(query, normalize(parts[0])) * SUBTITLE_MATCH);
+      }
+      if (scores.size() >= MAX_CACHE_SIZE) {
+        scores.clear();
+      }
+      scores.put(key, score);
+    }
+    return score;
+  }
+
+  private float compare(NormalizedTitle a, NormalizedTitle b) {
+    if (a.text.equals(b.text)) {
+      return 1;
+    }
+
+    float length = (float) Math.min(a.text.length(), b.text.length()) / Math.max(a.text.length(), b.text.length());
+    float overlap = a.overlap(b);
+    if ((length < MIN_LENGTH || overlap < MIN_OVERLAP) && !a.containsWords(b) && !b.containsWords(a)) {
+      // no real match - keep them ordered, but well below the full scores
+      return length * overlap * MIN_OVERLAP;
+    }
+    return MetadataUtil.calculateScore(a.text, b.text);
+  }
+
+  NormalizedTitle normalize(String title) {
+    NormalizedTitle n = normalized.get(title);
+    if (n == null) {
+      n = new NormalizedTitle(title);
+      if (normalized.size() >= MAX_CACHE_SIZE) {
+        normalized.clear();
+      }
+      normalized.put(title, n);
+    }
+    return n;
+  }
+
+  void clear() {
+    normalized.clear();
+    scores.clear();
+  }
+
+  /**
+   * a title in lower case without accents and punctuation, with its trigrams
+   */
+  static class NormalizedTitle {
+    final String text;
+    final long[] trigrams;
+
+    NormalizedTitle(String title) {
+      String s = Normalizer.normalize(title, Normalizer.Form.NFD).replaceAll("\\p{M}", "").toLowerCase(Locale.ROOT);
+      text = s.replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+
+      // padded, so that short words have trigrams too
+      String padded = "  " + text + " ";
+      long[] t = new long[padded.length() - 2];
+      for (int i = 0; i < t.length; i++) {
+        t[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+      }
+      Arrays.sort(t);
+
+      // unique
+      int size = 0;
+      for (int i = 0; i < t.length; i++) {
+        if (size == 0 || t[size - 1] != t[i]) {
+          t[size++] = t[i];
+        }
+      }
+      trigrams = Arrays.copyOf(t, size);
+    }
+
+    /**
+     * @return true if the other title is part of this one as whole words
+     */
+    boolean containsWords(NormalizedTitle other) {
+      return !other.text.isEmpty() && (" " + text + " ").contains(" " + other.text + " ");
+    }
+
+    /**
+     * @return the dice coefficient of the trigrams, 0 - 1
+     */
+    float overlap(NormalizedTitle other) {
+      int common = 0;
+      int i = 0;
+      int j = 0;
+      while (i < trigrams.length && j < other.trigrams.length) {
+        if (trigrams[i] == other.trigrams[j]) {
+          common++;
+          i++;
+          j++;
+        }
+        else if (trigrams[i] < other.trigrams[j]) {
+          i++;
+        }
+        else {
+          j++;
+        }
+      }
+      return 2f * common / (trigrams.length + other.trigrams.length);
+    }
+  }
+}
@@ -1,6 +1,5 @@
 package org.tinymediamanager.scraper.zelluloid;
 
-import java.io.InputStream;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
@@ -8,7 +7,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
@@ -17,12 +15,19 @@ import org.slf4j.LoggerFactory;
 import org.tinymediamanager.scraper.MediaProviderInfo;
 import org.tinymediamanager.scraper.MediaSearchOptions;
 import org.tinymediamanager.scraper.MediaSearchResult;
-import org.tinymediamanager.scraper.http.CachedUrl;
-import org.tinymediamanager.scraper.http.Url;
 
 public class SearchTitleWithGoogle {
-  private static final Logger LOGGER        = LoggerFactory.getLogger(SearchTitleWithGoogle.class);
-  private static final String PAGE_ENCODING = "UTF-8";
+  private static final Logger    LOGGER = LoggerFactory.getLogger(SearchTitleWithGoogle.class);
+
+  private final ZelluloidFetcher fetcher;
+
+  public SearchTitleWithGoogle() {
+    this(ZelluloidContext.getDefault().getFetcher());
+  }
+
+  SearchTitleWithGoogle(ZelluloidFetcher fetcher) {
+    this.fetcher = fetcher;
+  }
 
   /**
    * Does a fallback search with google, returning the first 10 results...<br>
@@ -67,10 +72,7 @@ public class SearchTitleWithGoogle {
 
     Document doc = null;
     try {
-      Url url = new CachedUrl(searchUrl);
-      InputStream in = url.getInputStream();
-      doc = Jsoup.parse(in, PAGE_ENCODING, "");
-      in.close();
+      doc = fetcher.fetch(searchUrl, ZelluloidFetcher.PageType.GOOGLE);
       if (doc == null) {
         return resultList;
       }
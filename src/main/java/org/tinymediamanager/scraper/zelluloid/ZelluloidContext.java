@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Class ZelluloidContext. Owns everything the zelluloid scraper shares between calls: the fetch layer (with its
+ * worker threads, page cache, circuit breakers and decode buffers), the person and trailer caches, the search ranking,
+ * the executor for the sub pages and the metrics.<br>
+ * <br>
+ * A context is thread safe and meant to be shared by any number of {@link ZelluloidMetadataProvider} instances and
+ * threads. Providers created with the default constructor share {@link #getDefault()}; a separate context (e.g. for a
+ * local mirror of the site, or for more parallel scrapes) can be created and passed to the provider. The thread pools are
+ * sized by the number of scrapes expected to run at the same time; more scrapes still work, but their page requests
+ * queue up. All threads of a context are daemon threads, idle ones die off; {@link #shutdown()} stops them explicitly.
+ */
+public class ZelluloidContext {
+  /** the number of parallel scrapes the default context is sized for */
+  public static final int                                 DEFAULT_PARALLEL_SCRAPES = 8;
+  // the sub pages per scrape (details, links, trailer)
+  private static final int                                SUB_PAGES                = 3;
+  private static final ZelluloidContext                   DEFAULT                  = new ZelluloidContext(
+      ZelluloidMetadataProvider.BASE_URL);
+
+  private final String                                    baseUrl;
+  private final ZelluloidMetrics                          metrics                  = new ZelluloidMetrics();
+  // all requests go through here (timeouts, retries, circuit breaker)
+  private final ZelluloidFetcher                          fetcher;
+  // shared over all movies, so every actor page is only fetched once
+  private final ZelluloidPersonCache                      personCache;
+  // details, links and trailer page of a movie are fetched in parallel
+  private final ThreadPoolExecutor                        pageExecutor;
+  private final ZelluloidTrailerCache                     trailerCache             = new ZelluloidTrailerCache(5000);
+  private final SearchTitleWithGoogle                     googleSearch;
+  private final SearchRanker                              searchRanker             = new SearchRanker();
+
+  /**
+   * creates a new context for the given site, sized for {@link #DEFAULT_PARALLEL_SCRAPES} parallel scrapes
+   *
+   * @param baseUrl
+   *          the base url of the site, like http://www.zelluloid.de
+   */
+  public ZelluloidContext(String baseUrl) {
+    this(baseUrl, DEFAULT_PARALLEL_SCRAPES);
+  }
+
+  /**
+   * creates a new context for the given site
+   *
+   * @param baseUrl
+   *          the base url of the site, like http://www.zelluloid.de
+   * @param parallelScrapes
+   *          the number of scrapes expected to run at the same time; sizes the thread pools
+   */
+  public ZelluloidContext(String baseUrl, int parallelScrapes) {
+    if (parallelScrapes < 1) {
+      throw new IllegalArgumentException("parallelScrapes must be at least 1: " + parallelScrapes);
+    }
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    // the main page and the sub pages of every scrape
+    this.fetcher = new ZelluloidFetcher(metrics, parallelScrapes * (SUB_PAGES + 1));
+    this.personCache = new ZelluloidPersonCache(fetcher, this.baseUrl, 4, 5000);
+    this.pageExecutor = new ThreadPoolExecutor(parallelScrapes * SUB_PAGES, parallelScrapes * SUB_PAGES, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("zelluloid-page"));
+    this.pageExecutor.allowCoreThreadTimeOut(true);
+    this.googleSearch = new SearchTitleWithGoogle(fetcher);
+  }
+
+  /**
+   * @return the context shared by all providers created with the default constructor
+   */
+  public static ZelluloidContext getDefault() {
+    return DEFAULT;
+  }
+
+  public String getBaseUrl() {
+    return baseUrl;
+  }
+
+  public ZelluloidMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * writes the caches of this context to the given file (see {@link ZelluloidSnapshot})
+   *
+   * @param file
+   *          the snapshot file
+   * @throws IOException
+   *           if the snapshot could not be written
+   */
+  public void saveSnapshot(Path file) throws IOException {
+    ZelluloidSnapshot.save(this, file);
+  }
+
+  /**
+   * restores the caches of this context from the given file (see {@link ZelluloidSnapshot})
+   *
+   * @param file
+   *          the snapshot file
+   * @return true if the snapshot has been loaded
+   */
+  public boolean loadSnapshot(Path file) {
+    return ZelluloidSnapshot.load(this, file);
+  }
+
+  /**
+   * stops all threads of this context; the context must not be used afterwards
+   */
+  public void shutdown() {
+    pageExecutor.shutdownNow();
+    personCache.shutdown();
+    fetcher.shutdown();
+  }
+
+  ZelluloidFetcher getFetcher() {
+    return fetcher;
+  }
+
+  ZelluloidPersonCache getPersonCache() {
+    return personCache;
+  }
+
+  ExecutorService getPageExecutor() {
+    return pageExecutor;
+  }
+
+  ZelluloidTrailerCache getTrailerCache() {
+    return trailerCache;
+  }
+
+  SearchTitleWithGoogle getGoogleSearch() {
+    return googleSearch;
+  }
+
+  SearchRanker getSearchRanker() {
+    return searchRanker;
+  }
+}
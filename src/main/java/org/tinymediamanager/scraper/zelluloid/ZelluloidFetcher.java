@@ -0,0 +1,467 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinymediamanager.scraper.http.Url;
+
+/**
+ * The Class ZelluloidFetcher. All page requests of this scraper go through here.<br>
+ * <br>
+ * The requests go through the {@link Url} of tinyMediaManager, so the HTTP client setup of the host (proxy, user agent,
+ * connection timeouts, redirects) applies. Every request gets a timeout depending on its page type, which aborts the
+ * request, and is retried a few times (with a jittered backoff). The timeout starts when a worker picks the request up:
+ * waiting for a free worker under load is no failure of the site. A circuit
+ * breaker per host stops hammering a site which is down: while it is open, requests fail fast with the last good copy of
+ * the page (if there is one) or a {@link CircuitOpenException}.<br>
+ * A missing page (HTTP 404 or 410) is no failure of the site: it is neither retried nor counted by the circuit breaker,
+ * but reported with a {@link PageNotFoundException}. A host which throttles or blocks us (HTTP 429, 403, 408) fails like
+ * one which is down; if it sends a Retry-After, the next attempt waits that long - or, for a longer break, the circuit
+ * breaker stays open until then.
+ */
+class ZelluloidFetcher {
+  private static final Logger                         LOGGER            = LoggerFactory.getLogger(ZelluloidFetcher.class);
+  private static final int                            MAX_RETRIES       = 2;
+  private static final long                           RETRY_BACKOFF     = 500;
+  // a longer Retry-After opens the circuit breaker instead of blocking the caller
+  private static final long                           MAX_RETRY_WAIT    = 5000;
+  private static final long                           MAX_RETRY_AFTER   = 60 * 60 * 1000L;
+  private static final int                            BREAKER_THRESHOLD = 5;
+  private static final long                           BREAKER_OPEN_TIME = 60000;
+  private static final int                            PAGE_CACHE_SIZE   = 250;
+  static final long                                   PAGE_TTL          = 12 * 60 * 60 * 1000L;
+  // search results change with every new movie on the site
+  static final long                                   SEARCH_TTL        = 15 * 60 * 1000L;
+
+  /**
+   * the page types with their own timeout, default encoding and time to live in the page cache; pages which are kept
+   * elsewhere (persons) do not go into the page cache
+   */
+  enum PageType {
+    SEARCH(15000, ZelluloidMetadataProvider.PAGE_ENCODING, SEARCH_TTL),
+    MOVIE(15000, ZelluloidMetadataProvider.PAGE_ENCODING, PAGE_TTL),
+    DETAILS(10000, ZelluloidMetadataProvider.PAGE_ENCODING, PAGE_TTL),
+    LINKS(10000, ZelluloidMetadataProvider.PAGE_ENCODING, PAGE_TTL),
+    TRAILER(10000, ZelluloidMetadataProvider.PAGE_ENCODING, PAGE_TTL),
+    PERSON(10000, ZelluloidMetadataProvider.PAGE_ENCODING, 0),
+    GOOGLE(10000, "UTF-8", SEARCH_TTL);
+
+    final long   timeout;
+    final String encoding;
+    final long   ttl;
+
+    PageType(long timeout, String encoding, long ttl) {
+      this.timeout = timeout;
+      this.encoding = encoding;
+      this.ttl = ttl;
+    }
+  }
+
+  // upper bound of concurrent requests; a worker is never blocked longer than the timeout of its request
+  private final ThreadPoolExecutor                    executor;
+  private final ConcurrentMap<String, CircuitBreaker> breakers          = new ConcurrentHashMap<>();
+  private final PageDecoder                           decoder           = new PageDecoder();
+  private final ZelluloidMetrics                      metrics;
+  // last good copy of every page; served directly while fresh, and as fallback when a host is not reachable
+  private final Map<String, CachedPage>               pageCache         = Collections.synchronizedMap(new PageCache());
+
+  /**
+   * @param metrics
+   *          the metrics to count the requests in
+   * @param workers
+   *          the maximum number of concurrent requests
+   */
+  ZelluloidFetcher(ZelluloidMetrics metrics, int workers) {
+    this.metrics = metrics;
+    executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new DaemonThreadFactory("zelluloid-fetch"));
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * fetches and parses the given page
+   *
+   * @param url
+   *          the url to fetch
+   * @param type
+   *          the page type
+   * @return the parsed page
+   * @throws Exception
+   *           if the page could not be fetched and there is no cached copy
+   */
+  Document fetch(String url, PageType type) throws Exception {
+    return Jsoup.parse(fetchHtml(url, type), "");
+  }
+
+  /**
+   * fetches the given page
+   *
+   * @param url
+   *          the url to fetch
+   * @param type
+   *          the page type
+   * @return the page source
+   * @throws Exception
+   *           if the page could not be fetched and there is no cached copy
+   */
+  String fetchHtml(String url, PageType type) throws Exception {
+    CachedPage cached = type.ttl > 0 ? pageCache.get(url) : null;
+    if (cached != null && cached.isFresh(type.ttl)) {
+      metrics.pageCacheHits.incrementAndGet();
+      return cached.html;
+    }
+
+    CircuitBreaker breaker = getBreaker(url);
+    if (!breaker.allowRequest()) {
+      metrics.rejected.incrementAndGet();
+      return fallback(url, new CircuitOpenException(breaker.getHost()));
+    }
+
+    Exception last = null;
+    long retryAfter = 0;
+    for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+      if (attempt > 0) {
+        // as asked by the host, or exponential backoff with full jitter
+        Thread.sleep(retryAfter > 0 ? retryAfter : ThreadLocalRandom.current().nextLong(RETRY_BACKOFF << attempt));
+        if (!breaker.allowRequest()) {
+          metrics.rejected.incrementAndGet();
+          last = new CircuitOpenException(breaker.getHost());
+          break;
+        }
+      }
+
+      try {
+        metrics.requests.incrementAndGet();
+        String html = load(url, type);
+        breaker.success();
+        // an error page is no good copy
+        if (type.ttl > 0 && !html.contains(ZelluloidMetadataProvider.ERROR_MARKER)) {
+          pageCache.put(url, new CachedPage(html, System.currentTimeMillis()));
+        }
+        return html;
+      }
+      catch (InterruptedException e) {
+        throw e;
+      }
+      catch (PageNotFoundException e) {
+        // the site is up, the page is just not there
+        breaker.success();
+        throw e;
+      }
+      catch (Exception e) {
+        LOGGER.debug("fetching " + url + " failed (attempt " + (attempt + 1) + "): " + e.getMessage());
+        metrics.failures.incrementAndGet();
+        breaker.failure();
+        last = e;
+
+        retryAfter = e instanceof ThrottledException ? ((ThrottledException) e).retryAfter : 0;
+        if (retryAfter > MAX_RETRY_WAIT) {
+          // do not ask again before the host wants us to
+          breaker.openFor(retryAfter);
+          break;
+        }
+      }
+    }
+
+    return fallback(url, last);
+  }
+
+  /**
+   * return the last good copy of the page or re-throw
+   */
+  private String fallback(String url, Exception e) throws Exception {
+    CachedPage cached = pageCache.get(url);
+    if (cached != null) {
+      LOGGER.warn("using cached copy of " + url + ": " + e.getMessage());
+      metrics.fallbacks.incrementAndGet();
+      return cached.html;
+    }
+    throw e;
+  }
+
+  private String load(String url, PageType type) throws Exception {
+    Request request = new Request(url, type);
+    Future<String> future = executor.submit(request);
+
+    long timeout = getTimeout(type);
+    try {
+      // the queue is bounded by the timeouts of the running requests
+      request.started.await();
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException e) {
+      future.cancel(true);
+      request.abort();
+      throw new SocketTimeoutException("timeout after " + timeout + "ms: " + url);
+    }
+    catch (InterruptedException e) {
+      future.cancel(true);
+      request.abort();
+      throw e;
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * the time a request of the given type may take, once a worker has picked it up
+   */
+  long getTimeout(PageType type) {
+    return type.timeout;
+  }
+
+  CircuitBreaker getBreaker(String url) {
+    String host;
+    try {
+      host = new URL(url).getHost();
+    }
+    catch (Exception e) {
+      host = url;
+    }
+
+    CircuitBreaker breaker = breakers.get(host);
+    if (breaker == null) {
+      breaker = new CircuitBreaker(host, BREAKER_THRESHOLD, BREAKER_OPEN_TIME);
+      CircuitBreaker existing = breakers.putIfAbsent(host, breaker);
+      if (existing != null) {
+        breaker = existing;
+      }
+    }
+    return breaker;
+  }
+
+  /**
+   * a copy of all cached pages (for the snapshot)
+   */
+  Map<String, CachedPage> getCachedPages() {
+    synchronized (pageCache) {
+      return new LinkedHashMap<>(pageCache);
+    }
+  }
+
+  void putCachedPage(String url, CachedPage page) {
+    pageCache.put(url, page);
+  }
+
+  /**
+   * stops the worker threads
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * drops all cached pages
+   */
+  void clear() {
+    pageCache.clear();
+  }
+
+  /**
+   * a copy of all circuit breakers (for the snapshot)
+   */
+  Map<String, CircuitBreaker> getBreakers() {
+    return new LinkedHashMap<>(breakers);
+  }
+
+  void restoreBreaker(String host, CircuitBreaker.State state, int failures, long openedAt) {
+    breakers.put(host, new CircuitBreaker(host, BREAKER_THRESHOLD, BREAKER_OPEN_TIME, state, failures, openedAt));
+  }
+
+  /**
+   * a page source along with the time it has been fetched
+   */
+  static class CachedPage {
+    final String html;
+    final long   fetched;
+
+    CachedPage(String html, long fetched) {
+      this.html = html;
+      this.fetched = fetched;
+    }
+
+    boolean isFresh(long ttl) {
+      return System.currentTimeMillis() - fetched < ttl;
+    }
+  }
+
+  /**
+   * a small LRU cache for page sources
+   */
+  private static class PageCache extends LinkedHashMap<String, CachedPage> {
+    private static final long serialVersionUID = 1L;
+
+    private PageCache() {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedPage> eldest) {
+      return size() > PAGE_CACHE_SIZE;
+    }
+  }
+
+  /**
+   * one request; it can be aborted from outside, which closes the response stream and so unblocks a pending read
+   */
+  private class Request implements Callable<String> {
+    private final String         url;
+    private final PageType       type;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile InputStream stream;
+
+    private Request(String url, PageType type) {
+      this.url = url;
+      this.type = type;
+    }
+
+    @Override
+    public String call() throws Exception {
+      started.countDown();
+      Url u = new Url(url);
+      InputStream in = u.getInputStream();
+      if (in == null) {
+        throw new IOException("no response for " + url);
+      }
+
+      stream = in;
+      try {
+        int status = u.getStatusCode();
+        if (status == 404 || status == 410) {
+          throw new PageNotFoundException(url, status);
+        }
+        if (status < 200 || status >= 300) {
+          long retryAfter = u.getHeadersResponse() == null ? 0 : parseRetryAfter(u.getHeadersResponse().get("Retry-After"));
+          if (status == 429 || status == 403 || status == 408 || retryAfter > 0) {
+            throw new ThrottledException(url, status, retryAfter);
+          }
+          throw new IOException("HTTP " + status + " for " + url);
+        }
+        // the Url reports the content type (with the charset) as content encoding
+        return decoder.decode(in, u.getContentLength(), PageDecoder.getCharset(u.getContentEncoding()), type.encoding);
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    private void abort() {
+      InputStream in = stream;
+      if (in != null) {
+        try {
+          in.close();
+        }
+        catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  /**
+   * @param value
+   *          the Retry-After header: seconds or an http date
+   * @return the time to wait in ms (at most an hour); 0 if there is nothing to wait for
+   */
+  static long parseRetryAfter(String value) {
+    if (StringUtils.isBlank(value)) {
+      return 0;
+    }
+
+    long wait;
+    value = value.trim();
+    if (value.matches("\\d{1,9}")) {
+      wait = Long.parseLong(value) * 1000;
+    }
+    else {
+      try {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        wait = format.parse(value).getTime() - System.currentTimeMillis();
+      }
+      catch (ParseException e) {
+        LOGGER.debug("cannot parse Retry-After: " + value);
+        return 0;
+      }
+    }
+    return Math.max(0, Math.min(wait, MAX_RETRY_AFTER));
+  }
+
+  /**
+   * thrown when a page does not exist (HTTP 404 or 410); not retried and not counted as failure of the site
+   */
+  static class PageNotFoundException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    PageNotFoundException(String url, int status) {
+      super("HTTP " + status + " for " + url);
+    }
+  }
+
+  /**
+   * thrown when the host throttles or blocks us, or asks us to come back later
+   */
+  static class ThrottledException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    // the time the host asked us to wait (in ms, 0 if not given)
+    final long                retryAfter;
+
+    ThrottledException(String url, int status, long retryAfter) {
+      super("HTTP " + status + " for " + url + (retryAfter > 0 ? " (retry after " + retryAfter + "ms)" : ""));
+      this.retryAfter = retryAfter;
+    }
+  }
+
+  /**
+   * thrown when a request is rejected by an open circuit breaker
+   */
+  static class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CircuitOpenException(String host) {
+      super("circuit breaker open for " + host);
+    }
+  }
+}
@@ -16,16 +16,20 @@
 
 package org.tinymediamanager.scraper.zelluloid;
 
-import java.io.InputStream;
 import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang3.StringUtils;
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
@@ -41,27 +45,44 @@ import org.tinymediamanager.scraper.entities.Certification;
 import org.tinymediamanager.scraper.entities.MediaArtwork;
 import org.tinymediamanager.scraper.entities.MediaCastMember;
 import org.tinymediamanager.scraper.entities.MediaGenres;
+import org.tinymediamanager.scraper.entities.MediaTrailer;
 import org.tinymediamanager.scraper.entities.MediaType;
-import org.tinymediamanager.scraper.http.CachedUrl;
-import org.tinymediamanager.scraper.http.Url;
 import org.tinymediamanager.scraper.mediaprovider.IMovieMetadataProvider;
+import org.tinymediamanager.scraper.mediaprovider.IMovieTrailerProvider;
 import org.tinymediamanager.scraper.util.MetadataUtil;
 import org.tinymediamanager.scraper.util.StrgUtils;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidFetcher.PageNotFoundException;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidFetcher.PageType;
 
 import net.xeoh.plugins.base.annotations.PluginImplementation;
 
 /**
- * The Class ZelluloidMetadataProvider. A meta data provider for the site zelluloid.de
+ * The Class ZelluloidMetadataProvider. A meta data provider for the site zelluloid.de<br>
+ * <br>
+ * Concurrency: a provider instance is thread safe. Any number of threads may call {@link #search}, {@link #getMetadata}
+ * and {@link #getTrailers} on the same instance at the same time; every call works on its own local state and all shared
+ * state (http workers, caches, executors, metrics) lives in the {@link ZelluloidContext} of the provider. So one instance
+ * (or many instances sharing one context) can serve a highly parallel scraper without any per-call setup.
  * 
  * @author Myron Boyle (myron0815@gmx.net)
  */
 @PluginImplementation
-public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // , IMovieTrailerProvider {
-  private static final Logger      LOGGER        = LoggerFactory.getLogger(ZelluloidMetadataProvider.class);
-  private static final String      BASE_URL      = "http://www.zelluloid.de";
-  private static final String      PAGE_ENCODING = "ISO-8859-1";
-
-  private static MediaProviderInfo providerInfo  = createMediaProviderInfo();
+public class ZelluloidMetadataProvider implements IMovieMetadataProvider, IMovieTrailerProvider {
+  private static final Logger      LOGGER            = LoggerFactory.getLogger(ZelluloidMetadataProvider.class);
+  static final String              BASE_URL          = "http://www.zelluloid.de";
+  static final String              PAGE_ENCODING     = "ISO-8859-1";
+  // zelluloid answers some failures with a regular page (HTTP 200) containing this text
+  static final String              ERROR_MARKER      = "Interner Fehler";
+  private static final long        PERSON_TIMEOUT    = 15000;
+  // upper bound for waiting on a sub page (including retries and the wait for a free worker)
+  private static final long        SUB_PAGE_TIMEOUT  = 60000;
+
+  private static MediaProviderInfo providerInfo      = createMediaProviderInfo();
+
+  private final ZelluloidContext   context;
+  private final String             baseUrl;
+  private volatile boolean         personEnrichment  = false;
+  private volatile boolean         otherTitleScoring = false;
 
   private static MediaProviderInfo createMediaProviderInfo() {
     MediaProviderInfo providerInfo = new MediaProviderInfo("zelluloid", "zelluloid.de",
@@ -72,6 +93,22 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
   }
 
   public ZelluloidMetadataProvider() {
+    this(ZelluloidContext.getDefault());
+  }
+
+  /**
+   * creates a provider working on the given context (instead of the default one)
+   *
+   * @param context
+   *          the context holding all shared resources
+   */
+  public ZelluloidMetadataProvider(ZelluloidContext context) {
+    this.context = context;
+    this.baseUrl = context.getBaseUrl();
+  }
+
+  public ZelluloidContext getContext() {
+    return context;
   }
 
   @Override
@@ -79,46 +116,73 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
     return providerInfo;
   }
 
+  /**
+   * Enables the parsing of the actor pages to get actor images. Disabled by default, since this costs one request per
+   * actor; the person pages are cached over all movies though.
+   *
+   * @param personEnrichment
+   *          true to fetch the actor pages
+   */
+  public void setPersonEnrichment(boolean personEnrichment) {
+    this.personEnrichment = personEnrichment;
+  }
+
+  public boolean isPersonEnrichment() {
+    return personEnrichment;
+  }
+
+  /**
+   * Scores the search results with their original title (as shown in the search result) too, not only with the german
+   * title. Disabled by default.
+   *
+   * @param otherTitleScoring
+   *          true to score with the original title too
+   */
+  public void setOtherTitleScoring(boolean otherTitleScoring) {
+    this.otherTitleScoring = otherTitleScoring;
+  }
+
+  public boolean isOtherTitleScoring() {
+    return otherTitleScoring;
+  }
+
   @Override
   public MediaMetadata getMetadata(MediaScrapeOptions options) throws Exception {
     LOGGER.debug("getMetadata() " + options.toString());
+    context.getMetrics().scrapes.incrementAndGet();
 
     if (options.getType() != MediaType.MOVIE) {
       throw new UnsupportedMediaTypeException(options.getType());
     }
 
-    String id = "";
-    if (StringUtils.isNotBlank(options.getId(providerInfo.getId()))) {
-      id = options.getId(providerInfo.getId());
-    }
-
-    if (StringUtils.isBlank(id) && options.getResult() != null) {
-      if (StringUtils.isEmpty(options.getResult().getId())) {
-        id = StrgUtils.substr(options.getResult().getUrl(), "id=(.*?)");
-      }
-      else {
-        id = options.getResult().getId();
-      }
-    }
+    String id = getZelluloidId(options);
 
     // we can not scrape without zelluloid id and url
-    if (StringUtils.isBlank(id) && StringUtils.isBlank(options.getResult().getUrl())) {
+    if (StringUtils.isBlank(id) && (options.getResult() == null || StringUtils.isBlank(options.getResult().getUrl()))) {
       throw new Exception("cannot scrape without id and url");
     }
 
-    String detailurl = BASE_URL + "/filme/index.php3?id=" + id;
+    String detailurl = baseUrl + "/filme/index.php3?id=" + id;
     if (StringUtils.isBlank(id)) {
       detailurl = options.getResult().getUrl();
     }
 
     MediaMetadata md = new MediaMetadata(providerInfo.getId());
 
-    Url url;
+    // request the sub pages alongside the main page, rather than one after another
+    SubPages subPages = null;
+    if (StringUtils.isNotBlank(id)) {
+      subPages = new SubPages(id);
+    }
+
     try {
-      url = new CachedUrl(detailurl);
-      InputStream in = url.getInputStream();
-      Document doc = Jsoup.parse(in, PAGE_ENCODING, "");
-      in.close();
+      Document doc = context.getFetcher().fetch(detailurl, PageType.MOVIE);
+
+      if (subPages == null) {
+        // scraped via url - take the id from the page
+        id = StrgUtils.substr(doc.getElementsByAttributeValueStarting("href", "details.php3?id=").attr("href"), "id=(\\d+)");
+        subPages = new SubPages(id);
+      }
 
       // parse title
       String title = doc.getElementsByAttributeValue("property", "og:title").attr("content").trim();
@@ -134,8 +198,8 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
       if (el.size() == 1) {
         // Poster
         MediaArtwork ma = new MediaArtwork(providerInfo.getId(), MediaArtwork.MediaArtworkType.POSTER);
-        ma.setPreviewUrl(BASE_URL + el.get(0).attr("src"));
-        ma.setDefaultUrl(BASE_URL + el.get(0).attr("src"));
+        ma.setPreviewUrl(baseUrl + el.get(0).attr("src"));
+        ma.setDefaultUrl(baseUrl + el.get(0).attr("src"));
         ma.setLanguage(options.getLanguage().getLanguage());
         md.addMediaArt(ma);
       }
@@ -211,19 +275,26 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
 
       // details page
       doc = null;
-      String detailsUrl = BASE_URL + "/filme/details.php3?id=" + id;
       try {
-        url = new CachedUrl(detailsUrl);
-        in = url.getInputStream();
-        doc = Jsoup.parse(in, PAGE_ENCODING, "");
-        in.close();
+        doc = subPages.details.get(SUB_PAGE_TIMEOUT, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e) {
+        throw e;
+      }
+      catch (TimeoutException e) {
+        // do not keep a page worker busy for nothing
+        subPages.details.cancel(true);
+        LOGGER.error("timeout getting details of id " + id);
       }
       catch (Exception e) {
         LOGGER.error("failed to get details: " + e.getMessage());
       }
 
-      if (doc != null) {
-        Element tab = doc.getElementById("ccdetails");
+      Element tab = doc == null ? null : doc.getElementById("ccdetails");
+      if (tab == null) {
+        LOGGER.warn("no credits found for id " + id);
+      }
+      else {
         int header = 0;
         String lastRole = "";
         for (Element tr : tab.getElementsByTag("tr")) {
@@ -262,7 +333,7 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
                 mcm.setId(StrgUtils.substr(el.get(1).getElementsByTag("a").attr("href"), "id=(\\d+)"));
                 mcm.setType(MediaCastMember.CastType.ACTOR);
                 md.addCastMember(mcm);
-                // parsing actor pages would we too heavy here just for actor images..
+                // actor pages are only parsed on demand (see personEnrichment)
               }
             }
             else if (header == 2) {
@@ -301,16 +372,23 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
             }
           }
         }
+
+        if (personEnrichment) {
+          context.getPersonCache().enrich(md.getCastMembers(MediaCastMember.CastType.ACTOR), PERSON_TIMEOUT);
+        }
       }
 
       // get links page
       doc = null;
-      String linksUrl = BASE_URL + "/filme/links.php3?id=" + id;
       try {
-        url = new CachedUrl(linksUrl);
-        in = url.getInputStream();
-        doc = Jsoup.parse(in, PAGE_ENCODING, "");
-        in.close();
+        doc = subPages.links.get(SUB_PAGE_TIMEOUT, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e) {
+        throw e;
+      }
+      catch (TimeoutException e) {
+        subPages.links.cancel(true);
+        LOGGER.error("timeout getting links page of id " + id);
       }
       catch (Exception e) {
         LOGGER.error("failed to get links page: " + e.getMessage());
@@ -326,9 +404,38 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
           md.setId(MediaMetadata.IMDB, imdb);
         }
       }
+
+      // trailer page - just fill the trailer cache
+      if (subPages.trailer != null) {
+        try {
+          cacheTrailers(id, subPages.trailer.get(SUB_PAGE_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        catch (InterruptedException e) {
+          throw e;
+        }
+        catch (TimeoutException e) {
+          subPages.trailer.cancel(true);
+          LOGGER.warn("timeout getting trailer page of id " + id);
+        }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof PageNotFoundException) {
+            // no trailers for this movie - do not ask again
+            context.getTrailerCache().put(id, Collections.<MediaTrailer> emptyList());
+          }
+          else {
+            LOGGER.warn("failed to get trailer page: " + e.getMessage());
+          }
+        }
+        catch (Exception e) {
+          LOGGER.warn("failed to parse trailer page: " + e.getMessage());
+        }
+      }
     }
     catch (Exception e) {
       LOGGER.error("Error parsing " + detailurl);
+      if (subPages != null) {
+        subPages.cancel();
+      }
 
       throw e;
     }
@@ -336,9 +443,158 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
     return md;
   }
 
+  @Override
+  public List<MediaTrailer> getTrailers(MediaScrapeOptions options) throws Exception {
+    LOGGER.debug("getTrailers() " + options.toString());
+
+    if (options.getType() != MediaType.MOVIE) {
+      throw new UnsupportedMediaTypeException(options.getType());
+    }
+
+    String id = getZelluloidId(options);
+    if (StringUtils.isBlank(id)) {
+      LOGGER.debug("no zelluloid id - cannot get trailers");
+      return new ArrayList<>(0);
+    }
+
+    List<MediaTrailer> trailers = context.getTrailerCache().get(id);
+    if (trailers == null) {
+      // http://www.zelluloid.de/filme/trailer.php3?id=7614
+      try {
+        trailers = cacheTrailers(id, context.getFetcher().fetch(baseUrl + "/filme/trailer.php3?id=" + id, PageType.TRAILER));
+      }
+      catch (PageNotFoundException e) {
+        LOGGER.debug("no trailer page for id " + id);
+        trailers = Collections.emptyList();
+        context.getTrailerCache().put(id, trailers);
+      }
+    }
+
+    // the cached trailers are shared - hand out copies
+    List<MediaTrailer> result = new ArrayList<>(trailers.size());
+    for (MediaTrailer cached : trailers) {
+      MediaTrailer trailer = new MediaTrailer();
+      trailer.setName(cached.getName());
+      trailer.setUrl(cached.getUrl());
+      trailer.setQuality(cached.getQuality());
+      trailer.setProvider(cached.getProvider());
+      result.add(trailer);
+    }
+    return result;
+  }
+
+  /**
+   * get the zelluloid id out of the scrape options (either directly or from the search result)
+   */
+  private String getZelluloidId(MediaScrapeOptions options) {
+    String id = "";
+    if (StringUtils.isNotBlank(options.getId(providerInfo.getId()))) {
+      id = options.getId(providerInfo.getId());
+    }
+
+    if (StringUtils.isBlank(id) && options.getResult() != null) {
+      if (StringUtils.isEmpty(options.getResult().getId())) {
+        id = StrgUtils.substr(options.getResult().getUrl(), "id=(\\d+)");
+      }
+      else {
+        id = options.getResult().getId();
+      }
+    }
+    return id;
+  }
+
+  /**
+   * fetches the given page in the background
+   */
+  private Future<Document> fetchDocumentAsync(final String pageUrl, final PageType type) {
+    return context.getPageExecutor().submit(new Callable<Document>() {
+      @Override
+      public Document call() throws Exception {
+        return context.getFetcher().fetch(pageUrl, type);
+      }
+    });
+  }
+
+  /**
+   * parses the trailer page and puts the result into the trailer cache
+   */
+  private List<MediaTrailer> cacheTrailers(String id, Document doc) {
+    List<MediaTrailer> trailers = parseTrailers(doc);
+    context.getTrailerCache().put(id, trailers);
+    return trailers;
+  }
+
+  private List<MediaTrailer> parseTrailers(Document doc) {
+    List<MediaTrailer> trailers = new ArrayList<>();
+    List<String> urls = new ArrayList<>();
+    String name = doc.getElementsByAttributeValue("property", "og:title").attr("content").trim();
+    if (StringUtils.isBlank(name)) {
+      name = "Trailer";
+    }
+
+    // direct video files - <source src=..>, <video src=..> or plain links
+    Elements el = doc.select("source[src], video[src], a[href~=(?i)\\.(mp4|m4v|mov|flv|webm)$]");
+    for (Element e : el) {
+      String trailerUrl = e.hasAttr("src") ? e.attr("src") : e.attr("href");
+      if (!trailerUrl.startsWith("http")) {
+        trailerUrl = baseUrl + (trailerUrl.startsWith("/") ? "" : "/filme/") + trailerUrl;
+      }
+      if (urls.contains(trailerUrl)) {
+        continue;
+      }
+      urls.add(trailerUrl);
+
+      MediaTrailer trailer = new MediaTrailer();
+      trailer.setName(e.tagName().equals("a") && StringUtils.isNotBlank(e.text()) ? e.text() : name);
+      trailer.setUrl(trailerUrl);
+      trailer.setQuality(getQuality(trailerUrl));
+      trailer.setProvider(providerInfo.getId());
+      trailers.add(trailer);
+    }
+
+    // embedded youtube videos
+    el = doc.getElementsByAttributeValueContaining("src", "youtube");
+    for (Element e : el) {
+      String ytid = StrgUtils.substr(e.attr("src"), "embed/([\\w-]+)");
+      if (ytid.isEmpty()) {
+        continue;
+      }
+      String trailerUrl = "https://www.youtube.com/watch?v=" + ytid;
+      if (urls.contains(trailerUrl)) {
+        continue;
+      }
+      urls.add(trailerUrl);
+
+      MediaTrailer trailer = new MediaTrailer();
+      trailer.setName(name);
+      trailer.setUrl(trailerUrl);
+      trailer.setQuality("unknown");
+      trailer.setProvider("youtube");
+      trailers.add(trailer);
+    }
+
+    LOGGER.debug("found " + trailers.size() + " trailers");
+    return trailers;
+  }
+
+  /**
+   * HD if the file name (not the path) has a token like hd, 720p or 1080p
+   */
+  static String getQuality(String trailerUrl) {
+    String file = trailerUrl.replaceAll("[?#].*$", "");
+    file = file.substring(file.lastIndexOf('/') + 1);
+    for (String token : file.toLowerCase(Locale.ROOT).split("[^a-z0-9]+")) {
+      if (token.matches("hd|720p?|1080p?")) {
+        return "HD";
+      }
+    }
+    return "SD";
+  }
+
   @Override
   public List<MediaSearchResult> search(MediaSearchOptions options) throws Exception {
     LOGGER.debug("search() " + options.toString());
+    context.getMetrics().searches.incrementAndGet();
 
     if (options.getMediaType() != MediaType.MOVIE) {
       throw new UnsupportedMediaTypeException(options.getMediaType());
@@ -357,7 +613,7 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
     // only title search
     if (StringUtils.isNotEmpty(options.getQuery())) {
       searchTerm = options.getQuery();
-      searchUrl = BASE_URL + "/suche/index.php3?qstring=" + URLEncoder.encode(searchTerm, "UTF-8");
+      searchUrl = baseUrl + "/suche/index.php3?qstring=" + URLEncoder.encode(searchTerm, "UTF-8");
       LOGGER.debug("search for : " + searchTerm);
     }
     else {
@@ -369,19 +625,15 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
 
     Document doc = null;
     try {
-      Url url = new CachedUrl(searchUrl);
-      InputStream in = url.getInputStream();
-      doc = Jsoup.parse(in, PAGE_ENCODING, "");
-      in.close();
+      doc = context.getFetcher().fetch(searchUrl, PageType.SEARCH);
     }
     catch (Exception e) {
       LOGGER.error("failed to search for " + searchTerm + ": " + e.getMessage());
     }
 
-    if (doc == null || doc.text().contains("Interner Fehler")) {
+    if (doc == null || doc.text().contains(ERROR_MARKER)) {
       // FIXME: we are using the one which comes with zelluloid - NOT the global one
-      SearchTitleWithGoogle gs = new SearchTitleWithGoogle();
-      List<MediaSearchResult> gr = gs.search("zelluloid.de", this.getProviderInfo(), options);
+      List<MediaSearchResult> gr = context.getGoogleSearch().search("zelluloid.de", this.getProviderInfo(), options);
       for (MediaSearchResult msr : gr) {
         // filter google results - only movie links
         if (msr.getUrl().contains("/filme/index.php3")) {
@@ -437,8 +689,8 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
         catch (Exception ignored) {
         }
 
-        sr.setUrl(BASE_URL + "/filme/index.php3?id=" + id);
-        // sr.setPosterUrl(BASE_URL + "/images" + StrgUtils.substr(a.toString(),
+        sr.setUrl(baseUrl + "/filme/index.php3?id=" + id);
+        // sr.setPosterUrl(baseUrl + "/images" + StrgUtils.substr(a.toString(),
         // "images(.*?)\\&quot"));
 
         if (imdb.equals(sr.getIMDBId())) {
@@ -447,7 +699,11 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
         }
         else {
           // compare score based on names
-          float score = MetadataUtil.calculateScore(searchTerm, sr.getTitle());
+          List<String> otherTitles = null;
+          if (otherTitleScoring && StringUtils.isNotBlank(sr.getOriginalTitle())) {
+            otherTitles = Collections.singletonList(sr.getOriginalTitle());
+          }
+          float score = context.getSearchRanker().score(searchTerm, sr.getTitle(), otherTitles);
           if (yearDiffers(year, sr.getYear())) {
             float diff = (float) Math.abs(year - sr.getYear()) / 100;
             LOGGER.debug("parsed year does not match search result year - downgrading score by " + diff);
@@ -500,12 +756,6 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
     return i1 != null && i1 != 0 && i2 != null && i2 != 0 && i1 != i2;
   }
 
-  // @Override
-  // public List<MediaTrailer> getTrailers(MediaScrapeOptions options) throws Exception {
-  // // http://www.zelluloid.de/filme/trailer.php3?id=7614
-  // return new ArrayList<MediaTrailer>(0);
-  // }
-
   private MediaGenres getTmmGenre(String genre) {
     MediaGenres g = null;
     if (genre.isEmpty()) {
@@ -579,4 +829,29 @@ public class ZelluloidMetadataProvider implements IMovieMetadataProvider { // ,
     }
     return g;
   }
+
+  /**
+   * the sub pages of a movie, requested in parallel
+   */
+  private class SubPages {
+    private final Future<Document> details;
+    private final Future<Document> links;
+    private final Future<Document> trailer;
+
+    private SubPages(String id) {
+      details = fetchDocumentAsync(baseUrl + "/filme/details.php3?id=" + id, PageType.DETAILS);
+      links = fetchDocumentAsync(baseUrl + "/filme/links.php3?id=" + id, PageType.LINKS);
+      // not needed if the trailers are cached already
+      trailer = context.getTrailerCache().get(id) != null ? null
+          : fetchDocumentAsync(baseUrl + "/filme/trailer.php3?id=" + id, PageType.TRAILER);
+    }
+
+    private void cancel() {
+      details.cancel(true);
+      links.cancel(true);
+      if (trailer != null) {
+        trailer.cancel(true);
+      }
+    }
+  }
 }
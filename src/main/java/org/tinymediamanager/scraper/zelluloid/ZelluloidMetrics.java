@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Class ZelluloidMetrics. Simple counters of a {@link ZelluloidContext}; all of them are safe to update and read from
+ * any thread.
+ */
+public class ZelluloidMetrics {
+  final AtomicLong requests      = new AtomicLong();
+  final AtomicLong failures      = new AtomicLong();
+  final AtomicLong pageCacheHits = new AtomicLong();
+  final AtomicLong fallbacks     = new AtomicLong();
+  final AtomicLong rejected      = new AtomicLong();
+  final AtomicLong searches      = new AtomicLong();
+  final AtomicLong scrapes       = new AtomicLong();
+
+  /**
+   * @return the number of requests sent (including retries)
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * @return the number of failed requests (including retries)
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * @return the number of pages served from the page cache without a request
+   */
+  public long getPageCacheHits() {
+    return pageCacheHits.get();
+  }
+
+  /**
+   * @return the number of stale pages served because the site was not reachable
+   */
+  public long getFallbacks() {
+    return fallbacks.get();
+  }
+
+  /**
+   * @return the number of requests rejected by an open circuit breaker
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getSearches() {
+    return searches.get();
+  }
+
+  public long getScrapes() {
+    return scrapes.get();
+  }
+
+  @Override
+  public String toString() {
+    return "requests=" + getRequests() + ", failures=" + getFailures() + ", pageCacheHits=" + getPageCacheHits() + ", fallbacks="
+        + getFallbacks() + ", rejected=" + getRejected() + ", searches=" + getSearches() + ", scrapes=" + getScrapes();
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jsoup.nodes.Document;
+import org.jsoup.select.Elements;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinymediamanager.scraper.entities.MediaCastMember;
+
+/**
+ * The Class ZelluloidPersonCache. A cross-movie cache for zelluloid person pages.<br>
+ * Every person is fetched at most once; concurrent lookups of the same id share the pending fetch, so a popular actor costs
+ * one request per library and not one per movie. Persons expire after {@link #PERSON_TTL}; when the cache grows beyond its
+ * maximum size, the expired and then the oldest persons are dropped.
+ */
+class ZelluloidPersonCache {
+  private static final Logger                         LOGGER     = LoggerFactory.getLogger(ZelluloidPersonCache.class);
+  static final long                                   PERSON_TTL = 7 * 24 * 60 * 60 * 1000L;
+
+  private final ConcurrentMap<String, Future<Person>> persons    = new ConcurrentHashMap<>();
+  private final ZelluloidFetcher                      fetcher;
+  private final String                                baseUrl;
+  private final ExecutorService                       executor;
+  private final int                                   maxSize;
+
+  ZelluloidPersonCache(ZelluloidFetcher fetcher, String baseUrl, int threads, int maxSize) {
+    this.fetcher = fetcher;
+    this.baseUrl = baseUrl;
+    this.maxSize = maxSize;
+    executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("zelluloid-person"));
+  }
+
+  /**
+   * gets the person with the given zelluloid id; fetches the person page in the background if it is not cached yet
+   *
+   * @param id
+   *          the zelluloid person id
+   * @return the (maybe pending) person
+   */
+  Future<Person> get(final String id) {
+    Future<Person> person = persons.get(id);
+    if (person != null) {
+      Person done = getDone(person);
+      if (done != null && !done.isFresh()) {
+        persons.remove(id, person);
+        person = null;
+      }
+    }
+
+    if (person == null) {
+      FutureTask<Person> task = new FutureTask<>(new Callable<Person>() {
+        @Override
+        public Person call() throws Exception {
+          return fetchPerson(id);
+        }
+      });
+      person = persons.putIfAbsent(id, task);
+      if (person == null) {
+        person = task;
+        executor.execute(task);
+        evict();
+      }
+    }
+    return person;
+  }
+
+  /**
+   * enriches the given cast members with the data from their person pages. All pages are requested concurrently; members
+   * whose page is not available within the timeout are left untouched
+   *
+   * @param members
+   *          the cast members to enrich
+   * @param timeout
+   *          the overall timeout in milliseconds
+   */
+  void enrich(List<MediaCastMember> members, long timeout) {
+    Map<MediaCastMember, Future<Person>> pending = new LinkedHashMap<>();
+    for (MediaCastMember mcm : members) {
+      if (StringUtils.isNotBlank(mcm.getId())) {
+        pending.put(mcm, get(mcm.getId()));
+      }
+    }
+
+    long deadline = System.currentTimeMillis() + timeout;
+    for (Map.Entry<MediaCastMember, Future<Person>> entry : pending.entrySet()) {
+      MediaCastMember mcm = entry.getKey();
+      try {
+        Person person = entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (StringUtils.isNotBlank(person.imageUrl)) {
+          mcm.setImageUrl(person.imageUrl);
+        }
+      }
+      catch (Exception e) {
+        LOGGER.debug("no person data for " + mcm.getName() + ": " + e.getMessage());
+        if (entry.getValue().isDone()) {
+          // do not keep failed fetches - try again with the next movie
+          persons.remove(mcm.getId(), entry.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * removes all cached persons
+   */
+  void clear() {
+    persons.clear();
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  int size() {
+    return persons.size();
+  }
+
+  /**
+   * all persons fetched so far (for the snapshot)
+   */
+  List<Person> getPersons() {
+    List<Person> result = new ArrayList<>();
+    for (Future<Person> future : persons.values()) {
+      Person person = getDone(future);
+      if (person != null && person.isFresh()) {
+        result.add(person);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * puts an already known person into the cache (expired persons are ignored)
+   */
+  void putPerson(final Person person) {
+    if (!person.isFresh()) {
+      return;
+    }
+    FutureTask<Person> done = new FutureTask<>(new Callable<Person>() {
+      @Override
+      public Person call() throws Exception {
+        return person;
+      }
+    });
+    done.run();
+    if (persons.putIfAbsent(person.id, done) == null) {
+      evict();
+    }
+  }
+
+  /**
+   * drops the expired persons and then the oldest ones, if the cache is too big; leaves some room, so that this does not
+   * run on every new person
+   */
+  private synchronized void evict() {
+    if (persons.size() <= maxSize) {
+      return;
+    }
+
+    List<Map.Entry<String, Future<Person>>> done = new ArrayList<>();
+    for (Map.Entry<String, Future<Person>> entry : persons.entrySet()) {
+      Person person = getDone(entry.getValue());
+      if (person == null) {
+        continue; // still pending
+      }
+      if (person.isFresh()) {
+        done.add(entry);
+      }
+      else {
+        persons.remove(entry.getKey(), entry.getValue());
+      }
+    }
+
+    int excess = persons.size() - maxSize * 9 / 10;
+    if (excess > 0) {
+      Collections.sort(done, new Comparator<Map.Entry<String, Future<Person>>>() {
+        @Override
+        public int compare(Map.Entry<String, Future<Person>> o1, Map.Entry<String, Future<Person>> o2) {
+          return Long.compare(getDone(o1.getValue()).fetched, getDone(o2.getValue()).fetched);
+        }
+      });
+      for (int i = 0; i < excess && i < done.size(); i++) {
+        persons.remove(done.get(i).getKey(), done.get(i).getValue());
+      }
+    }
+  }
+
+  /**
+   * @return the person of a successfully completed fetch, null otherwise
+   */
+  private static Person getDone(Future<Person> future) {
+    if (!future.isDone() || future.isCancelled()) {
+      return null;
+    }
+    try {
+      return future.get();
+    }
+    catch (Exception e) {
+      return null;
+    }
+  }
+
+  private Person fetchPerson(String id) throws Exception {
+    Document doc = fetcher.fetch(baseUrl + "/personen/index.php3?id=" + id, ZelluloidFetcher.PageType.PERSON);
+
+    Person person = new Person(id, System.currentTimeMillis());
+
+    // prefer the open graph image, fall back to the portrait on the page
+    String image = doc.getElementsByAttributeValue("property", "og:image").attr("content").trim();
+    if (StringUtils.isBlank(image) || image.contains("/gfx/")) {
+      Elements el = doc.getElementsByAttributeValueStarting("src", "/images/person");
+      image = el.isEmpty() ? "" : el.get(0).attr("src");
+    }
+    if (StringUtils.isNotBlank(image) && !image.startsWith("http")) {
+      image = baseUrl + image;
+    }
+    person.imageUrl = image;
+    return person;
+  }
+
+  /**
+   * the data we take from a person page
+   */
+  static class Person {
+    final String id;
+    final long   fetched;
+    String       imageUrl = "";
+
+    Person(String id, long fetched) {
+      this.id = id;
+      this.fetched = fetched;
+    }
+
+    boolean isFresh() {
+      return System.currentTimeMillis() - fetched < PERSON_TTL;
+    }
+  }
+}
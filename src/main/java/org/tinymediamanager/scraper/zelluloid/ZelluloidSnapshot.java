@@ -0,0 +1,338 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinymediamanager.scraper.entities.MediaTrailer;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidFetcher.CachedPage;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidPersonCache.Person;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidTrailerCache.Trailers;
+
+/**
+ * The Class ZelluloidSnapshot. Saves the runtime state of the zelluloid scraper to a single file and reads it back in on
+ * the next start, so a new process starts with warm caches.<br>
+ * <br>
+ * The snapshot contains the page cache (so recently scraped movies are not fetched again), the person and trailer caches
+ * and the circuit breaker states. Expired persons and trailers are not saved, and expired entries are skipped when
+ * loading. The file is read in one go
+ * and closed right away (not mapped), so it can be replaced by the next {@link #save(Path)} on any platform; a corrupt
+ * or truncated file is rejected as a whole, without touching the context.
+ */
+public class ZelluloidSnapshot {
+  private static final Logger  LOGGER  = LoggerFactory.getLogger(ZelluloidSnapshot.class);
+  private static final int     MAGIC   = 0x5A4C4C44;  // "ZLLD"
+  private static final int     VERSION = 3;
+  private static final Charset UTF8    = Charset.forName("UTF-8");
+
+  private ZelluloidSnapshot() {
+  }
+
+  /**
+   * writes the state of the default context to the given file (usually at shutdown)
+   *
+   * @param file
+   *          the snapshot file; replaced atomically if possible
+   * @throws IOException
+   *           if the snapshot could not be written
+   */
+  public static void save(Path file) throws IOException {
+    save(ZelluloidContext.getDefault(), file);
+  }
+
+  /**
+   * writes the state of the given context to the given file
+   *
+   * @param context
+   *          the context to save
+   * @param file
+   *          the snapshot file; replaced atomically if possible
+   * @throws IOException
+   *           if the snapshot could not be written
+   */
+  public static void save(ZelluloidContext context, Path file) throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      // pages
+      Map<String, CachedPage> pages = context.getFetcher().getCachedPages();
+      out.writeInt(pages.size());
+      for (Map.Entry<String, CachedPage> entry : pages.entrySet()) {
+        writeString(out, entry.getKey());
+        out.writeLong(entry.getValue().fetched);
+        writeString(out, entry.getValue().html);
+      }
+
+      // persons
+      List<Person> persons = context.getPersonCache().getPersons();
+      out.writeInt(persons.size());
+      for (Person person : persons) {
+        writeString(out, person.id);
+        out.writeLong(person.fetched);
+        writeString(out, person.imageUrl);
+      }
+
+      // trailers
+      List<Trailers> trailers = context.getTrailerCache().getTrailers();
+      out.writeInt(trailers.size());
+      for (Trailers entry : trailers) {
+        writeString(out, entry.id);
+        out.writeLong(entry.fetched);
+        out.writeInt(entry.trailers.size());
+        for (MediaTrailer trailer : entry.trailers) {
+          writeString(out, trailer.getName());
+          writeString(out, trailer.getUrl());
+          writeString(out, trailer.getQuality());
+          writeString(out, trailer.getProvider());
+        }
+      }
+
+      // circuit breakers
+      Map<String, CircuitBreaker> breakers = context.getFetcher().getBreakers();
+      out.writeInt(breakers.size());
+      for (CircuitBreaker breaker : breakers.values()) {
+        writeString(out, breaker.getHost());
+        out.writeInt(breaker.getState().ordinal());
+        out.writeInt(breaker.getFailures());
+        out.writeLong(breaker.getOpenedAt());
+      }
+
+      LOGGER.debug("snapshot: " + pages.size() + " pages, " + persons.size() + " persons, " + trailers.size() + " trailer lists");
+    }
+
+    try {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * reads the given snapshot file and restores the state of the default context from it (usually at startup)
+   *
+   * @param file
+   *          the snapshot file
+   * @return true if the snapshot has been loaded; false if there is no (valid) snapshot
+   */
+  public static boolean load(Path file) {
+    return load(ZelluloidContext.getDefault(), file);
+  }
+
+  /**
+   * reads the given snapshot file and restores the state of the given context from it
+   *
+   * @param context
+   *          the context to restore
+   * @param file
+   *          the snapshot file
+   * @return true if the snapshot has been loaded; false if there is no (valid) snapshot
+   */
+  public static boolean load(ZelluloidContext context, Path file) {
+    if (!Files.isRegularFile(file)) {
+      return false;
+    }
+
+    try {
+      ByteBuffer buf = read(file);
+      if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+        LOGGER.warn("ignoring incompatible snapshot " + file);
+        return false;
+      }
+
+      // the whole file is parsed before anything is put into the context, so a rejected snapshot leaves no partial state
+
+      // pages - skip the expired ones; shorter lived pages (search) are checked again when they are requested
+      int count = readCount(buf);
+      Map<String, CachedPage> pages = new LinkedHashMap<>();
+      for (int i = 0; i < count; i++) {
+        String url = readString(buf);
+        long fetched = buf.getLong();
+        if (System.currentTimeMillis() - fetched < ZelluloidFetcher.PAGE_TTL) {
+          pages.put(url, new CachedPage(readString(buf), fetched));
+        }
+        else {
+          skipString(buf);
+        }
+      }
+
+      // persons - expired ones are ignored by the cache
+      count = readCount(buf);
+      List<Person> persons = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        String id = readString(buf);
+        Person person = new Person(id, buf.getLong());
+        person.imageUrl = readString(buf);
+        persons.add(person);
+      }
+
+      // trailers - expired ones are ignored by the cache
+      count = readCount(buf);
+      List<Trailers> trailerLists = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        String id = readString(buf);
+        long fetched = buf.getLong();
+        int size = readCount(buf);
+        List<MediaTrailer> trailers = new ArrayList<>(size);
+        for (int j = 0; j < size; j++) {
+          MediaTrailer trailer = new MediaTrailer();
+          trailer.setName(readString(buf));
+          trailer.setUrl(readString(buf));
+          trailer.setQuality(readString(buf));
+          trailer.setProvider(readString(buf));
+          trailers.add(trailer);
+        }
+        trailerLists.add(new Trailers(id, trailers, fetched));
+      }
+
+      // circuit breakers
+      count = readCount(buf);
+      List<BreakerState> breakers = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        String host = readString(buf);
+        int state = buf.getInt();
+        if (state < 0 || state >= CircuitBreaker.State.values().length) {
+          throw new IOException("corrupt snapshot: invalid breaker state " + state);
+        }
+        breakers.add(new BreakerState(host, CircuitBreaker.State.values()[state], buf.getInt(), buf.getLong()));
+      }
+
+      if (buf.hasRemaining()) {
+        throw new IOException("corrupt snapshot: " + buf.remaining() + " trailing bytes");
+      }
+
+      // valid - apply it
+      for (Map.Entry<String, CachedPage> entry : pages.entrySet()) {
+        context.getFetcher().putCachedPage(entry.getKey(), entry.getValue());
+      }
+      for (Person person : persons) {
+        context.getPersonCache().putPerson(person);
+      }
+      for (Trailers trailers : trailerLists) {
+        context.getTrailerCache().putTrailers(trailers);
+      }
+      for (BreakerState breaker : breakers) {
+        context.getFetcher().restoreBreaker(breaker.host, breaker.state, breaker.failures, breaker.openedAt);
+      }
+
+      LOGGER.debug("loaded snapshot with " + pages.size() + " pages");
+      return true;
+    }
+    catch (Exception e) {
+      LOGGER.warn("could not load snapshot " + file + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * reads the whole file into memory; the file is closed afterwards
+   */
+  private static ByteBuffer read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("snapshot too big: " + channel.size());
+      }
+      ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+      while (buf.hasRemaining() && channel.read(buf) >= 0) {
+        // read fully
+      }
+      buf.flip();
+      return buf;
+    }
+  }
+
+  /**
+   * a count of entries; every entry takes at least one byte, so anything beyond the rest of the file is corrupt
+   */
+  private static int readCount(ByteBuffer buf) throws IOException {
+    int count = buf.getInt();
+    if (count < 0 || count > buf.remaining()) {
+      throw new IOException("corrupt snapshot: invalid count " + count);
+    }
+    return count;
+  }
+
+  private static String readString(ByteBuffer buf) throws IOException {
+    int len = readLength(buf);
+    if (len < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[len];
+    buf.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private static void skipString(ByteBuffer buf) throws IOException {
+    int len = readLength(buf);
+    if (len > 0) {
+      buf.position(buf.position() + len);
+    }
+  }
+
+  private static int readLength(ByteBuffer buf) throws IOException {
+    int len = buf.getInt();
+    if (len < -1 || len > buf.remaining()) {
+      throw new IOException("corrupt snapshot: invalid length " + len);
+    }
+    return len;
+  }
+
+  /**
+   * a circuit breaker state read from a snapshot
+   */
+  private static class BreakerState {
+    private final String               host;
+    private final CircuitBreaker.State state;
+    private final int                  failures;
+    private final long                 openedAt;
+
+    private BreakerState(String host, CircuitBreaker.State state, int failures, long openedAt) {
+      this.host = host;
+      this.state = state;
+      this.failures = failures;
+      this.openedAt = openedAt;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.tinymediamanager.scraper.entities.MediaTrailer;
+
+/**
+ * The Class ZelluloidTrailerCache. The trailers parsed per zelluloid movie id, so the trailer page fetched along with a
+ * scrape answers the trailer lookup for the same movie.<br>
+ * Trailer lists expire after {@link #TRAILER_TTL}; an empty list (no trailer page yet) after {@link #NO_TRAILER_TTL}, so
+ * a trailer added to the site later shows up. When the cache grows beyond its maximum size, the expired and then the
+ * oldest lists are dropped.
+ */
+class ZelluloidTrailerCache {
+  static final long                             TRAILER_TTL    = 7 * 24 * 60 * 60 * 1000L;
+  static final long                             NO_TRAILER_TTL = 24 * 60 * 60 * 1000L;
+
+  private final ConcurrentMap<String, Trailers> trailers       = new ConcurrentHashMap<>();
+  private final int                             maxSize;
+
+  ZelluloidTrailerCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @param id
+   *          the zelluloid movie id
+   * @return the cached trailers of the movie, null if there are none or they have expired
+   */
+  List<MediaTrailer> get(String id) {
+    Trailers cached = trailers.get(id);
+    if (cached == null) {
+      return null;
+    }
+    if (!cached.isFresh()) {
+      trailers.remove(id, cached);
+      return null;
+    }
+    return cached.trailers;
+  }
+
+  /**
+   * caches the trailers just parsed for a movie
+   *
+   * @param id
+   *          the zelluloid movie id
+   * @param list
+   *          the trailers (may be empty)
+   */
+  void put(String id, List<MediaTrailer> list) {
+    putTrailers(new Trailers(id, list, System.currentTimeMillis()));
+  }
+
+  /**
+   * puts already known trailers into the cache (expired ones are ignored)
+   */
+  void putTrailers(Trailers cached) {
+    if (!cached.isFresh()) {
+      return;
+    }
+    trailers.put(cached.id, cached);
+    evict();
+  }
+
+  /**
+   * all trailer lists which have not expired yet (for the snapshot)
+   */
+  List<Trailers> getTrailers() {
+    List<Trailers> result = new ArrayList<>();
+    for (Trailers cached : trailers.values()) {
+      if (cached.isFresh()) {
+        result.add(cached);
+      }
+    }
+    return result;
+  }
+
+  int size() {
+    return trailers.size();
+  }
+
+  void clear() {
+    trailers.clear();
+  }
+
+  /**
+   * drops the expired and then the oldest lists, if the cache is too big; leaves some room, so that this does not run on
+   * every new list
+   */
+  private synchronized void evict() {
+    if (trailers.size() <= maxSize) {
+      return;
+    }
+
+    List<Trailers> fresh = new ArrayList<>();
+    for (Trailers cached : trailers.values()) {
+      if (cached.isFresh()) {
+        fresh.add(cached);
+      }
+      else {
+        trailers.remove(cached.id, cached);
+      }
+    }
+
+    int excess = trailers.size() - maxSize * 9 / 10;
+    if (excess > 0) {
+      Collections.sort(fresh, new Comparator<Trailers>() {
+        @Override
+        public int compare(Trailers o1, Trailers o2) {
+          return Long.compare(o1.fetched, o2.fetched);
+        }
+      });
+      for (int i = 0; i < excess && i < fresh.size(); i++) {
+        trailers.remove(fresh.get(i).id, fresh.get(i));
+      }
+    }
+  }
+
+  /**
+   * the trailers of one movie along with the time they have been fetched
+   */
+  static class Trailers {
+    final String             id;
+    final List<MediaTrailer> trailers;
+    final long               fetched;
+
+    Trailers(String id, List<MediaTrailer> trailers, long fetched) {
+      this.id = id;
+      this.trailers = Collections.unmodifiableList(trailers);
+      this.fetched = fetched;
+    }
+
+    boolean isFresh() {
+      return System.currentTimeMillis() - fetched < (trailers.isEmpty() ? NO_TRAILER_TTL : TRAILER_TTL);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpenAndClose() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker("www.zelluloid.de", 3, 100);
+    assertThat(breaker.allowRequest()).isTrue();
+
+    // opens after 3 consecutive failures
+    breaker.failure();
+    breaker.failure();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    breaker.failure();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(breaker.allowRequest()).isFalse();
+
+    // one trial after the open time
+    Thread.sleep(150);
+    assertThat(breaker.allowRequest()).isTrue();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    assertThat(breaker.allowRequest()).isFalse();
+
+    // failed trial re-opens immediately
+    breaker.failure();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+
+    // successful trial closes
+    Thread.sleep(150);
+    assertThat(breaker.allowRequest()).isTrue();
+    breaker.success();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(breaker.allowRequest()).isTrue();
+  }
+
+  @Test
+  public void testOpenFor() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker("www.google.de", 3, 100);
+
+    // longer than the open time
+    breaker.openFor(300);
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    Thread.sleep(150);
+    assertThat(breaker.allowRequest()).isFalse();
+    Thread.sleep(200);
+    assertThat(breaker.allowRequest()).isTrue();
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for zelluloid.de, serving canned pages (ISO-8859-1) by path and query.
+ */
+class LocalZelluloidServer implements Closeable {
+  private final HttpServer           server;
+  private final ExecutorService      executor      = Executors.newFixedThreadPool(64);
+  private final Map<String, byte[]>  pages         = new ConcurrentHashMap<>();
+  private final Map<String, Integer> errors        = new ConcurrentHashMap<>();
+  private final Map<String, String>  retryAfter    = new ConcurrentHashMap<>();
+  private final AtomicInteger        requests      = new AtomicInteger();
+  private final AtomicInteger        concurrent    = new AtomicInteger();
+  private final AtomicInteger        maxConcurrent = new AtomicInteger();
+  private volatile long              delay;
+
+  LocalZelluloidServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int current = concurrent.incrementAndGet();
+        try {
+          synchronized (maxConcurrent) {
+            if (current > maxConcurrent.get()) {
+              maxConcurrent.set(current);
+            }
+          }
+          if (delay > 0) {
+            Thread.sleep(delay);
+          }
+          serve(exchange);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          exchange.close();
+        }
+        finally {
+          concurrent.decrementAndGet();
+        }
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    String key = exchange.getRequestURI().getRawPath();
+    if (exchange.getRequestURI().getRawQuery() != null) {
+      key += "?" + exchange.getRequestURI().getRawQuery();
+    }
+
+    Integer error = errors.get(key);
+    byte[] page = pages.get(key);
+    if (error != null || page == null) {
+      if (retryAfter.containsKey(key)) {
+        exchange.getResponseHeaders().set("Retry-After", retryAfter.get(key));
+      }
+      exchange.sendResponseHeaders(error != null ? error : 404, -1);
+      exchange.close();
+      return;
+    }
+
+    exchange.getResponseHeaders().set("Content-Type", "text/html; charset=iso-8859-1");
+    exchange.sendResponseHeaders(200, page.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(page);
+    out.close();
+  }
+
+  String getBaseUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * @param pathAndQuery
+   *          like /filme/index.php3?id=886
+   * @param page
+   *          the raw page
+   */
+  void addPage(String pathAndQuery, byte[] page) {
+    pages.put(pathAndQuery, page);
+  }
+
+  /**
+   * @param pathAndQuery
+   *          like /filme/index.php3?id=886
+   * @param status
+   *          the http status to answer with
+   */
+  void addError(String pathAndQuery, int status) {
+    errors.put(pathAndQuery, status);
+  }
+
+  /**
+   * @param pathAndQuery
+   *          like /filme/index.php3?id=886
+   * @param status
+   *          the http status to answer with
+   * @param retryAfter
+   *          the Retry-After header to send along
+   */
+  void addError(String pathAndQuery, int status, String retryAfter) {
+    this.retryAfter.put(pathAndQuery, retryAfter);
+    addError(pathAndQuery, status);
+  }
+
+  /**
+   * @param delay
+   *          the time every answer takes, in ms
+   */
+  void setDelay(long delay) {
+    this.delay = delay;
+  }
+
+  int getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * @return the most requests that have been served at the same time
+   */
+  int getMaxConcurrent() {
+    return maxConcurrent.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
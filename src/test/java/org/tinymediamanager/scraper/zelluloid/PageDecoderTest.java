@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class PageDecoderTest {
+  private static final String PAGE = "<html><head><title>Die Bourne Identität | Zelluloid.de</title></head><body>Komödie, Märchen, Militär</body></html>";
+
+  @Test
+  public void testLatin1() throws Exception {
+    PageDecoder decoder = new PageDecoder();
+    byte[] bytes = PAGE.getBytes("ISO-8859-1");
+
+    assertThat(decoder.decode(new ByteArrayInputStream(bytes), bytes.length, null, "ISO-8859-1")).isEqualTo(PAGE);
+    // unknown and wrong Content-Length
+    assertThat(decoder.decode(new ByteArrayInputStream(bytes), 0, null, "ISO-8859-1")).isEqualTo(PAGE);
+    assertThat(decoder.decode(new ByteArrayInputStream(bytes), 10, null, "ISO-8859-1")).isEqualTo(PAGE);
+  }
+
+  @Test
+  public void testDeclaredCharset() throws Exception {
+    PageDecoder decoder = new PageDecoder();
+
+    // meta tag wins over the default
+    String page = PAGE.replace("<head>", "<head><meta charset=\"utf-8\">");
+    byte[] bytes = page.getBytes("UTF-8");
+    assertThat(decoder.decode(new ByteArrayInputStream(bytes), bytes.length, null, "ISO-8859-1")).isEqualTo(page);
+
+    page = PAGE.replace("<head>", "<head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">");
+    bytes = page.getBytes("UTF-8");
+    assertThat(decoder.decode(new ByteArrayInputStream(bytes), bytes.length, null, "ISO-8859-1")).isEqualTo(page);
+
+    // server wins over the meta tag
+    assertThat(decoder.decode(new ByteArrayInputStream(bytes), bytes.length, "UTF-8", "ISO-8859-1")).isEqualTo(page);
+    bytes = PAGE.replace("<head>", "<head><meta charset=\"utf-8\">").getBytes("ISO-8859-1");
+    assertThat(decoder.decode(new ByteArrayInputStream(bytes), bytes.length, "ISO-8859-1", "UTF-8")).contains("Identität");
+  }
+
+  @Test
+  public void testServerCharset() {
+    assertThat(PageDecoder.getCharset("text/html; charset=iso-8859-1")).isEqualTo("iso-8859-1");
+    assertThat(PageDecoder.getCharset("text/html;charset=\"UTF-8\"")).isEqualTo("UTF-8");
+    assertThat(PageDecoder.getCharset("text/html")).isNull();
+    assertThat(PageDecoder.getCharset(null)).isNull();
+  }
+
+  @Test
+  public void testAllocations() throws Exception {
+    com.sun.management.ThreadMXBean mxBean = getAllocationBean();
+
+    // a typical details page is around 100kb
+    StringBuilder sb = new StringBuilder("<html><head><title>Die Bourne Identität | Zelluloid.de</title></head><body><table>");
+    for (int i = 0; sb.length() < 100 * 1024; i++) {
+      sb.append("<tr><td>Rolle ").append(i).append("</td><td><a href=\"../personen/index.php3?id=").append(i)
+          .append("\">Darsteller Märchen</a></td></tr>\n");
+    }
+    sb.append("</table></body></html>");
+    byte[] bytes = sb.toString().getBytes("ISO-8859-1");
+    PageDecoder decoder = new PageDecoder();
+
+    for (int i = 0; i < 50; i++) {
+      decoder.decode(new ByteArrayInputStream(bytes), bytes.length, null, "ISO-8859-1");
+    }
+
+    // with a pooled buffer only the String itself is left (1 or 2 bytes per char, depending on the JVM)
+    long tid = Thread.currentThread().getId();
+    long start = mxBean.getThreadAllocatedBytes(tid);
+    for (int i = 0; i < 100; i++) {
+      decoder.decode(new ByteArrayInputStream(bytes), bytes.length, null, "ISO-8859-1");
+    }
+    long perPage = (mxBean.getThreadAllocatedBytes(tid) - start) / 100;
+
+    assertThat(perPage).as("allocated per page of %d bytes: %d bytes", bytes.length, perPage).isLessThanOrEqualTo(3L * bytes.length);
+  }
+
+  @Test
+  public void testHugeContentLength() throws Exception {
+    com.sun.management.ThreadMXBean mxBean = getAllocationBean();
+    byte[] bytes = PAGE.getBytes("ISO-8859-1");
+    PageDecoder decoder = new PageDecoder();
+
+    // a bogus Content-Length does not allocate a buffer of that size
+    long tid = Thread.currentThread().getId();
+    long start = mxBean.getThreadAllocatedBytes(tid);
+    assertThat(decoder.decode(new ByteArrayInputStream(bytes), Integer.MAX_VALUE / 2, null, "ISO-8859-1")).isEqualTo(PAGE);
+    long allocated = mxBean.getThreadAllocatedBytes(tid) - start;
+
+    assertThat(allocated).as("allocated: %d bytes", allocated).isLessThanOrEqualTo(2L * 1024 * 1024);
+  }
+
+  private static com.sun.management.ThreadMXBean getAllocationBean() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) bean;
+    Assume.assumeTrue(mxBean.isThreadAllocatedMemorySupported());
+    mxBean.setThreadAllocatedMemoryEnabled(true);
+    return mxBean;
+  }
+}
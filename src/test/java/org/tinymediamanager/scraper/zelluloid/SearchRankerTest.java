@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.tinymediamanager.scraper.util.MetadataUtil;
+
+public class SearchRankerTest {
+  // search term, index of the right result, results as "title|original title" or just "title" (like most search results)
+  private static final String[][] CASES = { { "12 Monkeys", "0", "Twelve Monkeys|Twelve Monkeys", "Monkeybone|Monkeybone" },
+      { "The Bourne Identity", "1", "Die Bourne Verschwörung|The Bourne Supremacy", "Die Bourne Identität|The Bourne Identity",
+          "Das Bourne Ultimatum|The Bourne Ultimatum" },
+      { "Die Bourne Identitat", "1", "Die Bourne Verschwörung|The Bourne Supremacy", "Die Bourne Identität|The Bourne Identity" },
+      { "The Lives of Others", "0", "Das Leben der Anderen|The Lives of Others", "Das Leben des Brian|Life of Brian",
+          "The Others|The Others" },
+      { "Good Bye Lenin", "1", "Good Bye Bafana|Goodbye Bafana", "Good Bye, Lenin!|Good Bye, Lenin!" },
+      { "Das Boot", "0", "Das Boot|Das Boot", "Das Boot ist voll|Das Boot ist voll", "Boot Camp|Boot Camp" },
+      { "Pans Labyrinth", "0", "Pans Labyrinth|El laberinto del fauno", "Labyrinth|Labyrinth" },
+      { "The Hangover", "0", "Hangover|The Hangover", "Hangover 2|The Hangover Part II", "Hängt ihn höher|Hang 'Em High" },
+      { "Amelie", "0", "Die fabelhafte Welt der Amélie|Le fabuleux destin d'Amélie Poulain", "Amelia|Amelia" },
+      { "Le fabuleux destin d'Amelie Poulain", "1", "Amelia|Amelia",
+          "Die fabelhafte Welt der Amélie|Le fabuleux destin d'Amélie Poulain" },
+      { "Leon", "1", "Leo|Leo", "Léon - Der Profi|Léon" },
+      { "Inglourious Basterds", "0", "Inglourious Basterds|Inglourious Basterds",
+          "Ein Haufen verwegener Hunde|Quel maledetto treno blindato" },
+      { "The Matrix", "0", "Matrix|The Matrix", "Matrix Reloaded|The Matrix Reloaded", "Animatrix|The Animatrix" },
+      { "Shining", "0", "Shining|The Shining", "Shine - Der Weg ins Licht|Shine" },
+      { "Ocean's Eleven", "0", "Ocean's Eleven|Ocean's Eleven", "Ocean's Twelve|Ocean's Twelve", "Frankie und seine Spießgesellen|Ocean's 11" },
+      { "M", "0", "M - Eine Stadt sucht einen Mörder|M", "Mama|Mama" },
+      { "Der Himmel uber Berlin", "0", "Der Himmel über Berlin|Der Himmel über Berlin", "Stadt der Engel|City of Angels" },
+      { "Spirited Away", "0", "Chihiros Reise ins Zauberland|Sen to Chihiro no kamikakushi",
+          "Spirit - Der wilde Mustang|Spirit: Stallion of the Cimarron" },
+      { "Alien", "0", "Alien - Das unheimliche Wesen aus einer fremden Welt|Alien", "Aliens - Die Rückkehr|Aliens", "Alien 3|Alien³" },
+      { "The Departed", "0", "Departed - Unter Feinden|The Departed", "Departure|Departure" },
+      { "Alien", "0", "Alien - Das unheimliche Wesen aus einer fremden Welt", "Aliens - Die Rückkehr", "Alien 3" },
+      { "Leon", "1", "Leo", "Léon - Der Profi" },
+      { "M", "0", "M - Eine Stadt sucht einen Mörder", "Mama" },
+      { "Der Untergang", "1", "Der Untergang der Pamir", "Der Untergang - Hitlers letzte Tage" },
+      { "Inception", "1", "Deception - Tödliche Versuchung", "Inception - Dein Verstand ist der Tatort" },
+      { "Das Boot", "0", "Das Boot", "Das Boot ist voll", "Boot Camp" },
+      { "Twelve Monkeys", "0", "12 Monkeys", "Monkeybone" },
+      { "Amelie", "0", "Die fabelhafte Welt der Amélie", "Amelia" } };
+  private static final int        ROUNDS = 2000;
+
+  @Test
+  public void testScore() {
+    SearchRanker ranker = new SearchRanker();
+    // normalized: case, accents and punctuation do not matter
+    assertThat(ranker.score("good bye lenin", "Good Bye, Lenin!")).isEqualTo(1f);
+    assertThat(ranker.score("Die Bourne Identitat", "Die Bourne Identität")).isEqualTo(1f);
+    // nothing in common - not compared in full
+    assertThat(ranker.score("Das Boot", "Chihiros Reise ins Zauberland")).isLessThan(0.1f);
+    // a long subtitle - the title contains the search term
+    assertThat(ranker.score("Alien", "Alien - Das unheimliche Wesen aus einer fremden Welt"))
+        .isGreaterThan(ranker.score("Alien", "Alien 3"));
+    assertThat(ranker.score("Leon", "Léon - Der Profi")).isGreaterThan(ranker.score("Leon", "Leo"));
+    assertThat(ranker.score("Spiel mir das Lied vom Tod", "Once Upon a Time in the West - Spiel mir das Lied vom Tod"))
+        .isGreaterThan(0.1f);
+    // the best title counts
+    assertThat(ranker.score("The Lives of Others", "Das Leben der Anderen", Collections.singletonList("The Lives of Others")))
+        .isEqualTo(1f);
+    assertThat(ranker.score("", "Das Boot")).isEqualTo(0f);
+    assertThat(ranker.score("Das Boot", null)).isEqualTo(0f);
+  }
+
+  @Test
+  public void testBenchmark() {
+    SearchRanker ranker = new SearchRanker();
+
+    int plainHits = 0;
+    int rankerHits = 0;
+    for (String[] c : CASES) {
+      if (best(c, null) == Integer.parseInt(c[1])) {
+        plainHits++;
+      }
+      if (best(c, ranker) == Integer.parseInt(c[1])) {
+        rankerHits++;
+      }
+    }
+
+    // batch imports: the same pairs over and over
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      for (String[] c : CASES) {
+        best(c, null);
+      }
+    }
+    long plain = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      for (String[] c : CASES) {
+        best(c, ranker);
+      }
+    }
+    long ranked = System.nanoTime() - start;
+
+    assertThat(rankerHits).as("top-1 - plain: %d/%d, ranker: %d/%d; per search - plain: %d ns, ranker: %d ns", plainHits, CASES.length,
+        rankerHits, CASES.length, plain / ROUNDS / CASES.length, ranked / ROUNDS / CASES.length).isGreaterThanOrEqualTo(plainHits);
+  }
+
+  /**
+   * the index of the best result; without a ranker the way the results have been scored before. Both get the same titles
+   * (the title and the original title, if there is one) and the best one counts.
+   */
+  private int best(String[] c, SearchRanker ranker) {
+    String searchTerm = MetadataUtil.removeNonSearchCharacters(c[0]);
+    int best = -1;
+    float bestScore = -1;
+    for (int i = 2; i < c.length; i++) {
+      List<String> titles = Arrays.asList(c[i].split("\\|"));
+      float score;
+      if (ranker == null) {
+        score = 0;
+        for (String title : titles) {
+          score = Math.max(score, MetadataUtil.calculateScore(searchTerm, title));
+        }
+      }
+      else {
+        score = ranker.score(searchTerm, titles.get(0), titles.subList(1, titles.size()));
+      }
+      if (score > bestScore) {
+        bestScore = score;
+        best = i - 2;
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.tinymediamanager.scraper.MediaMetadata;
+import org.tinymediamanager.scraper.MediaScrapeOptions;
+import org.tinymediamanager.scraper.MediaSearchOptions;
+import org.tinymediamanager.scraper.MediaSearchResult;
+import org.tinymediamanager.scraper.entities.MediaCastMember.CastType;
+import org.tinymediamanager.scraper.entities.MediaTrailer;
+import org.tinymediamanager.scraper.entities.MediaType;
+
+/**
+ * Hammers one provider instance from many threads against a local stand-in of the site.
+ */
+public class ZelluloidConcurrencyTest {
+  private static final String[] TITLES     = { "Twelve Monkeys", "Die Bourne Identität", "V wie Vendetta", "Brazil", "Das Boot",
+      "Lola rennt", "Metropolis", "Der Himmel über Berlin", "Good Bye, Lenin!", "Das Leben der Anderen", "Fitzcarraldo",
+      "Die Blechtrommel", "Im Juli", "Gegen die Wand", "Sonnenallee", "Der Untergang", "Nosferatu", "M - Eine Stadt sucht einen Mörder",
+      "Das Cabinet des Dr. Caligari", "Jenseits der Stille" };
+  private static final int      THREADS    = 16;
+  private static final int      ITERATIONS = 60;
+
+  @Test
+  public void testSharedInstance() throws Exception {
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      for (int i = 0; i < TITLES.length; i++) {
+        addMovie(server, 1000 + i, TITLES[i], 1950 + i);
+      }
+
+      ZelluloidContext context = new ZelluloidContext(server.getBaseUrl());
+      final ZelluloidMetadataProvider mp = new ZelluloidMetadataProvider(context);
+      mp.setPersonEnrichment(true);
+
+      final Queue<String> errors = new ConcurrentLinkedQueue<>();
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(THREADS);
+      for (int t = 0; t < THREADS; t++) {
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              for (int i = 0; i < ITERATIONS; i++) {
+                int movie = ThreadLocalRandom.current().nextInt(TITLES.length);
+                try {
+                  check(mp, movie, i % 3);
+                }
+                catch (Throwable e) {
+                  errors.add(TITLES[movie] + ": " + e);
+                }
+              }
+            }
+            catch (InterruptedException ignored) {
+            }
+            finally {
+              done.countDown();
+            }
+          }
+        }).start();
+      }
+
+      start.countDown();
+      assertThat(done.await(2, TimeUnit.MINUTES)).isTrue();
+      assertThat(errors).isEmpty();
+
+      // everything went through the shared context and its caches: once warm, no page is fetched again
+      assertThat(context.getMetrics().getSearches() + context.getMetrics().getScrapes()).isGreaterThan(0);
+      for (int movie = 0; movie < TITLES.length; movie++) {
+        for (int operation = 0; operation < 3; operation++) {
+          check(mp, movie, operation);
+        }
+      }
+      int requests = server.getRequests();
+      for (int movie = 0; movie < TITLES.length; movie++) {
+        for (int operation = 0; operation < 3; operation++) {
+          check(mp, movie, operation);
+        }
+      }
+      assertThat(server.getRequests()).isEqualTo(requests);
+      context.shutdown();
+    }
+  }
+
+  /**
+   * cold caches and a slow site: the sub pages of all running scrapes have to be fetched at the same time, not queued
+   * behind a few shared threads
+   */
+  @Test
+  public void testParallelColdScrapes() throws Exception {
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      for (int i = 0; i < TITLES.length; i++) {
+        addMovie(server, 1000 + i, TITLES[i], 1950 + i);
+      }
+      server.setDelay(200);
+
+      final ZelluloidContext context = new ZelluloidContext(server.getBaseUrl(), THREADS);
+      final ZelluloidMetadataProvider mp = new ZelluloidMetadataProvider(context);
+      mp.setPersonEnrichment(true);
+
+      final Queue<String> errors = new ConcurrentLinkedQueue<>();
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(THREADS);
+      for (int t = 0; t < THREADS; t++) {
+        final int movie = t;
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              check(mp, movie, 1);
+            }
+            catch (Throwable e) {
+              errors.add(TITLES[movie] + ": " + e);
+            }
+            finally {
+              done.countDown();
+            }
+          }
+        }).start();
+      }
+
+      start.countDown();
+      assertThat(done.await(1, TimeUnit.MINUTES)).isTrue();
+      assertThat(errors).isEmpty();
+
+      // details, links and trailer page of every scrape at once; a pool not sized for the load caps this
+      assertThat(server.getMaxConcurrent()).as("max concurrent requests: %d", server.getMaxConcurrent())
+          .isGreaterThanOrEqualTo(2 * THREADS);
+      context.shutdown();
+    }
+  }
+
+  private void check(ZelluloidMetadataProvider mp, int movie, int operation) throws Exception {
+    String id = String.valueOf(1000 + movie);
+    switch (operation) {
+      case 0:
+        List<MediaSearchResult> results = mp.search(new MediaSearchOptions(MediaType.MOVIE, TITLES[movie]));
+        assertThat(results).isNotEmpty();
+        assertThat(results.get(0).getId()).isEqualTo(id);
+        break;
+
+      case 1:
+        MediaScrapeOptions scop = new MediaScrapeOptions(MediaType.MOVIE);
+        scop.setId(mp.getProviderInfo().getId(), id);
+        MediaMetadata md = mp.getMetadata(scop);
+        assertThat(md.getTitle()).isEqualTo(TITLES[movie]);
+        assertThat(md.getYear()).isEqualTo(1950 + movie);
+        assertThat(md.getRuntime()).isEqualTo(90 + movie);
+        assertThat(md.getCastMembers(CastType.ACTOR)).hasSize(2);
+        assertThat(md.getCastMembers(CastType.ACTOR).get(0).getImageUrl()).isEqualTo(mp.getContext().getBaseUrl() + "/images/person/1.jpg");
+        assertThat(md.getCastMembers(CastType.DIRECTOR)).hasSize(1);
+        assertThat(md.getId("imdb")).isEqualTo("tt" + (1000000 + movie));
+        break;
+
+      default:
+        scop = new MediaScrapeOptions(MediaType.MOVIE);
+        scop.setId(mp.getProviderInfo().getId(), id);
+        List<MediaTrailer> trailers = mp.getTrailers(scop);
+        assertThat(trailers).hasSize(1);
+        assertThat(trailers.get(0).getUrl()).isEqualTo("https://www.youtube.com/watch?v=yt" + id);
+        break;
+    }
+  }
+
+  private void addMovie(LocalZelluloidServer server, int id, String title, int year) throws Exception {
+    int n = id - 1000;
+    server.addPage("/filme/index.php3?id=" + id, latin1("<html><head><title>" + title + " | Zelluloid.de</title>"
+        + "<meta property=\"og:title\" content=\"" + title + "\"></head><body>" + "<img src=\"/images/poster/" + id + ".jpg\">"
+        + "<a href=\"az.php3?j=" + year + "\">" + year + "</a>" + "<div>Originaltitel: " + title + "<br>ca.&nbsp;" + (90 + n)
+        + "&nbsp;min, FSK: ab 16, Deutschland</div>" + "<a href=\"az.php3?g=14\">Drama</a>" + "<div class=\"bigtext\">Handlung von "
+        + title + "</div>" + "<table class=\"ratingBarTable\"><tr><td><div>70%</div></td></tr></table>"
+        + "<table class=\"ratingBarTable\"><tr><td><div>8" + (n % 10) + "%</div></td></tr></table>" + "<a href=\"details.php3?id=" + id
+        + "\">Details</a></body></html>"));
+
+    server.addPage("/filme/details.php3?id=" + id,
+        latin1("<html><body><table id=\"ccdetails\">" + "<tr><td colspan=\"2\"><img src=\"/gfx/dyngfx/Besetzung.gif\"></td></tr>"
+            + "<tr><td>Held</td><td><a href=\"../personen/index.php3?id=1\">Erster Darsteller</a></td></tr>"
+            + "<tr><td>Schurke</td><td><a href=\"../personen/index.php3?id=2\">Zweiter Darsteller</a></td></tr>"
+            + "<tr><td colspan=\"2\"><img src=\"/gfx/dyngfx/Crew.gif\"></td></tr>"
+            + "<tr><td>Regie</td><td><a href=\"../personen/index.php3?id=3\">Regisseur " + n + "</a></td></tr>"
+            + "<tr><td colspan=\"2\"><img src=\"/gfx/dyngfx/Produktion.gif\"></td></tr>" + "<tr><td>Studio " + n + "</td></tr>"
+            + "</table></body></html>"));
+
+    server.addPage("/filme/links.php3?id=" + id,
+        latin1("<html><body><a href=\"http://german.imdb.com/title/tt" + (1000000 + n) + "/\">IMDb</a></body></html>"));
+
+    server.addPage("/filme/trailer.php3?id=" + id,
+        latin1("<html><body><iframe src=\"https://www.youtube.com/embed/yt" + id + "\"></iframe></body></html>"));
+
+    for (int p = 1; p <= 3; p++) {
+      server.addPage("/personen/index.php3?id=" + p, latin1("<html><head><meta property=\"og:title\" content=\"Person " + p
+          + "\"></head><body><img src=\"/images/person/" + p + ".jpg\"></body></html>"));
+    }
+
+    // search: the movie plus a decoy with a similar title
+    server.addPage("/suche/index.php3?qstring=" + URLEncoder.encode(title, "UTF-8"),
+        latin1("<html><head><title>Suche nach " + title + " | Zelluloid.de</title></head><body><table>"
+            + "<tr><td><img src=\"/gfx/icoMovie.gif\"></td><td><a href=\"hit.php3?hit=abc-movie-9" + id + "-1-2\">" + title
+            + " - Die Fortsetzung <nobr>(" + (year + 5) + ")</nobr></a></td></tr>"
+            + "<tr><td><img src=\"/gfx/icoMovie.gif\"></td><td><a href=\"hit.php3?hit=abc-movie-" + id + "-1-2\">" + title + " <nobr>("
+            + year + ")</nobr></a></td></tr>" + "</table></body></html>"));
+  }
+
+  private byte[] latin1(String html) throws Exception {
+    return html.getBytes("ISO-8859-1");
+  }
+}
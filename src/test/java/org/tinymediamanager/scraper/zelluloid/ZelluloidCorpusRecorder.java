@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import org.jsoup.Jsoup;
+import org.tinymediamanager.scraper.http.Url;
+
+/**
+ * Records the corpus for {@link ZelluloidRegressionTest} from the live site. Not a test - run it manually with the corpus
+ * directory and a file with one zelluloid id per line (optionally followed by a tab and the search query; defaults to
+ * the title):
+ *
+ * <pre>
+ * java ZelluloidCorpusRecorder src/test/resources/corpus ids.txt
+ * </pre>
+ *
+ * The raw movie, details, links, trailer and search pages are stored in pages/. For every new film a golden file with
+ * id and query is created; fill in the expected values by running the regression test once with
+ * -Dzelluloid.regression.updateGolden=true and review the diff.
+ */
+public class ZelluloidCorpusRecorder {
+  private static final String[] SUB_PAGES = { "index", "details", "links", "trailer" };
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("usage: ZelluloidCorpusRecorder <corpus dir> <id file>");
+      System.exit(1);
+    }
+
+    Path corpus = Paths.get(args[0]);
+    Files.createDirectories(corpus.resolve("pages"));
+    Files.createDirectories(corpus.resolve("golden"));
+
+    for (String line : Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+      String[] parts = line.trim().split("\t", 2);
+      String id = parts[0];
+      if (id.isEmpty() || id.startsWith("#")) {
+        continue;
+      }
+
+      byte[] movie = null;
+      for (String page : SUB_PAGES) {
+        byte[] bytes = record(corpus, "/filme/" + page + ".php3?id=" + id);
+        if (movie == null) {
+          movie = bytes;
+        }
+      }
+
+      String query = parts.length > 1 ? parts[1].trim() : "";
+      if (query.isEmpty()) {
+        query = Jsoup.parse(new String(movie, ZelluloidMetadataProvider.PAGE_ENCODING)).getElementsByAttributeValue("property", "og:title")
+            .attr("content").trim();
+      }
+      record(corpus, "/suche/index.php3?qstring=" + URLEncoder.encode(query, "UTF-8"));
+
+      Path golden = corpus.resolve("golden").resolve(id + ".properties");
+      if (!Files.exists(golden)) {
+        Properties properties = new Properties();
+        properties.setProperty("id", id);
+        properties.setProperty("query", query);
+        try (OutputStream out = Files.newOutputStream(golden)) {
+          properties.store(out, "golden output for zelluloid id " + id);
+        }
+      }
+      System.out.println("recorded " + id + " (" + query + ")");
+
+      // be nice to the site
+      Thread.sleep(1000);
+    }
+  }
+
+  /**
+   * stores the raw page under its url encoded path and query (as expected by {@link ZelluloidRegressionTest})
+   */
+  private static byte[] record(Path corpus, String pathAndQuery) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = new Url(ZelluloidMetadataProvider.BASE_URL + pathAndQuery).getInputStream()) {
+      byte[] buffer = new byte[8192];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        out.write(buffer, 0, len);
+      }
+    }
+
+    byte[] bytes = out.toByteArray();
+    Files.write(corpus.resolve("pages").resolve(URLEncoder.encode(pathAndQuery, "UTF-8") + ".html"), bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Test;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidFetcher.CachedPage;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidFetcher.CircuitOpenException;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidFetcher.PageNotFoundException;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidFetcher.PageType;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidFetcher.ThrottledException;
+
+public class ZelluloidFetcherTest {
+  private static final int CALLERS = 12;
+
+  @Test
+  public void testMissingPagesDoNotOpenTheBreaker() throws Exception {
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      server.addPage("/filme/index.php3?id=1", "<html>Film</html>".getBytes("ISO-8859-1"));
+      server.addError("/filme/links.php3?id=3", 410);
+      ZelluloidMetrics metrics = new ZelluloidMetrics();
+      ZelluloidFetcher fetcher = new ZelluloidFetcher(metrics, 4);
+
+      // more missing pages than the breaker threshold
+      for (int i = 0; i < 10; i++) {
+        try {
+          fetcher.fetchHtml(server.getBaseUrl() + "/filme/trailer.php3?id=" + i, PageType.TRAILER);
+          fail("page should be missing");
+        }
+        catch (PageNotFoundException expected) {
+        }
+      }
+      try {
+        fetcher.fetchHtml(server.getBaseUrl() + "/filme/links.php3?id=3", PageType.LINKS);
+        fail("page should be gone");
+      }
+      catch (PageNotFoundException expected) {
+      }
+
+      // no retries, no failures
+      assertThat(server.getRequests()).isEqualTo(11);
+      assertThat(metrics.getFailures()).isEqualTo(0);
+      CircuitBreaker breaker = fetcher.getBreaker(server.getBaseUrl());
+      assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+      assertThat(breaker.getFailures()).isEqualTo(0);
+
+      // the site is still reachable
+      assertThat(fetcher.fetchHtml(server.getBaseUrl() + "/filme/index.php3?id=1", PageType.MOVIE)).isEqualTo("<html>Film</html>");
+      fetcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testServerErrorsAreRetried() throws Exception {
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      server.addError("/filme/index.php3?id=1", 503);
+      ZelluloidMetrics metrics = new ZelluloidMetrics();
+      ZelluloidFetcher fetcher = new ZelluloidFetcher(metrics, 4);
+
+      try {
+        fetcher.fetchHtml(server.getBaseUrl() + "/filme/index.php3?id=1", PageType.MOVIE);
+        fail("page should fail");
+      }
+      catch (PageNotFoundException e) {
+        fail("server errors are no missing pages");
+      }
+      catch (Exception expected) {
+      }
+
+      assertThat(server.getRequests()).isEqualTo(3);
+      assertThat(metrics.getFailures()).isEqualTo(3);
+      assertThat(fetcher.getBreaker(server.getBaseUrl()).getFailures()).isEqualTo(3);
+      fetcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testThrottlingIsAFailure() throws Exception {
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      server.addError("/search?q=1", 403);
+      ZelluloidMetrics metrics = new ZelluloidMetrics();
+      ZelluloidFetcher fetcher = new ZelluloidFetcher(metrics, 4);
+
+      try {
+        fetcher.fetchHtml(server.getBaseUrl() + "/search?q=1", PageType.GOOGLE);
+        fail("page should fail");
+      }
+      catch (PageNotFoundException e) {
+        fail("a blocked request is no missing page");
+      }
+      catch (ThrottledException expected) {
+      }
+
+      // retried and counted, so the breaker can open
+      assertThat(server.getRequests()).isEqualTo(3);
+      assertThat(metrics.getFailures()).isEqualTo(3);
+      assertThat(fetcher.getBreaker(server.getBaseUrl()).getFailures()).isEqualTo(3);
+      fetcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testPageCaching() throws Exception {
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      server.addPage("/filme/index.php3?id=1", "<html>Film</html>".getBytes("ISO-8859-1"));
+      server.addPage("/filme/index.php3?id=2", "<html>Film 2</html>".getBytes("ISO-8859-1"));
+      server.addPage("/suche/index.php3?qstring=film", "<html>Suche</html>".getBytes("ISO-8859-1"));
+      server.addPage("/suche/index.php3?qstring=fehler", "<html>Interner Fehler</html>".getBytes("ISO-8859-1"));
+      ZelluloidFetcher fetcher = new ZelluloidFetcher(new ZelluloidMetrics(), 4);
+
+      // movie pages are served from the cache
+      fetcher.fetchHtml(server.getBaseUrl() + "/filme/index.php3?id=1", PageType.MOVIE);
+      fetcher.fetchHtml(server.getBaseUrl() + "/filme/index.php3?id=1", PageType.MOVIE);
+      assertThat(server.getRequests()).isEqualTo(1);
+
+      // error pages are not cached at all
+      fetcher.fetchHtml(server.getBaseUrl() + "/suche/index.php3?qstring=fehler", PageType.SEARCH);
+      fetcher.fetchHtml(server.getBaseUrl() + "/suche/index.php3?qstring=fehler", PageType.SEARCH);
+      assertThat(server.getRequests()).isEqualTo(3);
+      assertThat(fetcher.getCachedPages()).doesNotContainKey(server.getBaseUrl() + "/suche/index.php3?qstring=fehler");
+
+      // an hour old search page is fetched again, an hour old movie page is not
+      long hourAgo = System.currentTimeMillis() - 60 * 60 * 1000L;
+      fetcher.putCachedPage(server.getBaseUrl() + "/suche/index.php3?qstring=film", new CachedPage("<html>alt</html>", hourAgo));
+      fetcher.putCachedPage(server.getBaseUrl() + "/filme/index.php3?id=2", new CachedPage("<html>Film 2</html>", hourAgo));
+      assertThat(fetcher.fetchHtml(server.getBaseUrl() + "/suche/index.php3?qstring=film", PageType.SEARCH)).isEqualTo("<html>Suche</html>");
+      fetcher.fetchHtml(server.getBaseUrl() + "/filme/index.php3?id=2", PageType.MOVIE);
+      assertThat(server.getRequests()).isEqualTo(4);
+      fetcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testRetryAfter() throws Exception {
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      server.addError("/search?q=1", 429, "1");
+      server.addError("/search?q=2", 429, "120");
+      ZelluloidMetrics metrics = new ZelluloidMetrics();
+      ZelluloidFetcher fetcher = new ZelluloidFetcher(metrics, 4);
+
+      // a short break: every retry waits as long as asked
+      long start = System.currentTimeMillis();
+      try {
+        fetcher.fetchHtml(server.getBaseUrl() + "/search?q=1", PageType.GOOGLE);
+        fail("page should fail");
+      }
+      catch (ThrottledException expected) {
+      }
+      assertThat(server.getRequests()).isEqualTo(3);
+      assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(2000L);
+
+      // a long break: no retry, the host is left alone until then
+      try {
+        fetcher.fetchHtml(server.getBaseUrl() + "/search?q=2", PageType.GOOGLE);
+        fail("page should fail");
+      }
+      catch (ThrottledException expected) {
+      }
+      assertThat(server.getRequests()).isEqualTo(4);
+      assertThat(fetcher.getBreaker(server.getBaseUrl()).getState()).isEqualTo(CircuitBreaker.State.OPEN);
+      try {
+        fetcher.fetchHtml(server.getBaseUrl() + "/search?q=3", PageType.GOOGLE);
+        fail("breaker should be open");
+      }
+      catch (CircuitOpenException expected) {
+      }
+      assertThat(server.getRequests()).isEqualTo(4);
+      fetcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testParseRetryAfter() {
+    assertThat(ZelluloidFetcher.parseRetryAfter("120")).isEqualTo(120000L);
+    assertThat(ZelluloidFetcher.parseRetryAfter(null)).isEqualTo(0L);
+    assertThat(ZelluloidFetcher.parseRetryAfter("soon")).isEqualTo(0L);
+    // an http date in the past
+    assertThat(ZelluloidFetcher.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT")).isEqualTo(0L);
+    // capped
+    assertThat(ZelluloidFetcher.parseRetryAfter("999999999")).isEqualTo(60 * 60 * 1000L);
+  }
+
+  /**
+   * more callers than workers and a slow site: the requests wait longer for a worker than their timeout allows, but a
+   * healthy site must not look like a failing one
+   */
+  @Test
+  public void testQueueWaitIsNoTimeout() throws Exception {
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      for (int i = 0; i < CALLERS; i++) {
+        server.addPage("/filme/index.php3?id=" + i, "<html>Film</html>".getBytes("ISO-8859-1"));
+      }
+      server.setDelay(300);
+      ZelluloidMetrics metrics = new ZelluloidMetrics();
+      final ZelluloidFetcher fetcher = new ZelluloidFetcher(metrics, 2) {
+        @Override
+        long getTimeout(PageType type) {
+          return 1000;
+        }
+      };
+
+      final String baseUrl = server.getBaseUrl();
+      final Queue<String> errors = new ConcurrentLinkedQueue<>();
+      List<Thread> callers = new ArrayList<>();
+      for (int i = 0; i < CALLERS; i++) {
+        final int id = i;
+        Thread caller = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              fetcher.fetchHtml(baseUrl + "/filme/index.php3?id=" + id, PageType.MOVIE);
+            }
+            catch (Exception e) {
+              errors.add(id + ": " + e);
+            }
+          }
+        });
+        caller.start();
+        callers.add(caller);
+      }
+      for (Thread caller : callers) {
+        caller.join();
+      }
+
+      assertThat(errors).isEmpty();
+      assertThat(metrics.getFailures()).isEqualTo(0);
+      assertThat(server.getRequests()).isEqualTo(CALLERS);
+      assertThat(fetcher.getBreaker(baseUrl).getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+      fetcher.shutdown();
+    }
+  }
+}
@@ -30,6 +30,7 @@ import org.tinymediamanager.scraper.entities.Certification;
 import org.tinymediamanager.scraper.entities.MediaCastMember;
 import org.tinymediamanager.scraper.entities.MediaCastMember.CastType;
 import org.tinymediamanager.scraper.entities.MediaGenres;
+import org.tinymediamanager.scraper.entities.MediaTrailer;
 import org.tinymediamanager.scraper.entities.MediaType;
 
 public class ZelluloidMetadataProviderTest {
@@ -134,4 +135,88 @@ public class ZelluloidMetadataProviderTest {
     }
   }
 
+  @Test
+  public void testScrapeWithActorImages() {
+    ZelluloidMetadataProvider mp;
+
+    try {
+      mp = new ZelluloidMetadataProvider();
+      mp.setPersonEnrichment(true);
+
+      MediaScrapeOptions scop = new MediaScrapeOptions(MediaType.MOVIE);
+      scop.setId(mp.getProviderInfo().getId(), "886");
+      MediaMetadata md = mp.getMetadata(scop);
+
+      assertThat(md.getCastMembers(CastType.ACTOR)).isNotNull().isNotEmpty();
+      MediaCastMember cm = md.getCastMembers(CastType.ACTOR).get(0);
+      assertThat(cm.getName()).isEqualTo("Bruce Willis");
+      assertThat(cm.getImageUrl()).startsWith("http");
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+      Assert.fail();
+    }
+  }
+
+  @Test
+  public void testTrailers() {
+    ZelluloidMetadataProvider mp;
+
+    try {
+      mp = new ZelluloidMetadataProvider();
+
+      MediaScrapeOptions scop = new MediaScrapeOptions(MediaType.MOVIE);
+      scop.setId(mp.getProviderInfo().getId(), "7614");
+      List<MediaTrailer> trailers = mp.getTrailers(scop);
+
+      assertThat(trailers).isNotNull();
+      for (MediaTrailer trailer : trailers) {
+        assertThat(trailer.getUrl()).startsWith("http");
+      }
+
+      // second call is served from the trailer cache
+      assertThat(mp.getTrailers(scop)).hasSameSizeAs(trailers);
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+      Assert.fail();
+    }
+  }
+
+  @Test
+  public void testTrailerQuality() {
+    assertThat(ZelluloidMetadataProvider.getQuality("http://www.zelluloid.de/trailer/7614_hd.mp4")).isEqualTo("HD");
+    assertThat(ZelluloidMetadataProvider.getQuality("http://www.zelluloid.de/trailer/7614-1080p.mp4?x=1")).isEqualTo("HD");
+    // only the file name counts
+    assertThat(ZelluloidMetadataProvider.getQuality("http://www.zelluloid.de/shadow/7614.mp4")).isEqualTo("SD");
+    assertThat(ZelluloidMetadataProvider.getQuality("http://hd.example.com/1080/trailer.mp4")).isEqualTo("SD");
+    assertThat(ZelluloidMetadataProvider.getQuality("http://www.zelluloid.de/trailer/shadows.mp4")).isEqualTo("SD");
+  }
+
+  @Test
+  public void testCachedTrailersNotFetched() throws Exception {
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      server.addPage("/filme/index.php3?id=1", "<html><head><meta property=\"og:title\" content=\"Film\"></head></html>".getBytes("ISO-8859-1"));
+      server.addPage("/filme/details.php3?id=1", "<html><table id=\"ccdetails\"></table></html>".getBytes("ISO-8859-1"));
+      server.addPage("/filme/links.php3?id=1", "<html></html>".getBytes("ISO-8859-1"));
+      server.addPage("/filme/trailer.php3?id=1",
+          "<html><iframe src=\"https://www.youtube.com/embed/abc\"></iframe></html>".getBytes("ISO-8859-1"));
+
+      ZelluloidContext context = new ZelluloidContext(server.getBaseUrl());
+      ZelluloidMetadataProvider mp = new ZelluloidMetadataProvider(context);
+      MediaScrapeOptions scop = new MediaScrapeOptions(MediaType.MOVIE);
+      scop.setId(mp.getProviderInfo().getId(), "1");
+
+      mp.getMetadata(scop);
+      assertThat(server.getRequests()).isEqualTo(4);
+
+      // without the page cache, only the trailer page is skipped
+      context.getFetcher().clear();
+      mp.getMetadata(scop);
+      assertThat(server.getRequests()).isEqualTo(7);
+      assertThat(mp.getTrailers(scop)).hasSize(1);
+      assertThat(server.getRequests()).isEqualTo(7);
+      context.shutdown();
+    }
+  }
 }
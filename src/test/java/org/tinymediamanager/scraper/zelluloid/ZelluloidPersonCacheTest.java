@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidPersonCache.Person;
+
+public class ZelluloidPersonCacheTest {
+
+  @Test
+  public void testMaxSize() {
+    ZelluloidPersonCache cache = new ZelluloidPersonCache(null, ZelluloidMetadataProvider.BASE_URL, 1, 10);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 25; i++) {
+      cache.putPerson(new Person(String.valueOf(i), now + i));
+    }
+
+    // the oldest ones are gone
+    assertThat(cache.size()).isLessThanOrEqualTo(10);
+    assertThat(cache.getPersons()).isNotEmpty();
+    for (Person person : cache.getPersons()) {
+      assertThat(Integer.parseInt(person.id)).isGreaterThanOrEqualTo(15);
+    }
+    cache.shutdown();
+  }
+
+  @Test
+  public void testExpiry() {
+    ZelluloidPersonCache cache = new ZelluloidPersonCache(null, ZelluloidMetadataProvider.BASE_URL, 1, 10);
+    cache.putPerson(new Person("1", System.currentTimeMillis() - ZelluloidPersonCache.PERSON_TTL - 1));
+    cache.putPerson(new Person("2", System.currentTimeMillis()));
+
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.getPersons()).hasSize(1);
+    cache.shutdown();
+  }
+
+  @Test
+  public void testPersonPagesNotInPageCache() throws Exception {
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      server.addPage("/personen/index.php3?id=1", "<html><body><img src=\"/images/person/1.jpg\"></body></html>".getBytes("ISO-8859-1"));
+      ZelluloidFetcher fetcher = new ZelluloidFetcher(new ZelluloidMetrics(), 1);
+      ZelluloidPersonCache cache = new ZelluloidPersonCache(fetcher, server.getBaseUrl(), 1, 10);
+
+      assertThat(cache.get("1").get().imageUrl).isEqualTo(server.getBaseUrl() + "/images/person/1.jpg");
+      // kept by the person cache only - movie pages are not pushed out of the page cache
+      assertThat(fetcher.getCachedPages()).isEmpty();
+
+      cache.shutdown();
+      fetcher.shutdown();
+    }
+  }
+}
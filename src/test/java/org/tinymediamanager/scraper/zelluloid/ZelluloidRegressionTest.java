@@ -0,0 +1,450 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URLDecoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jsoup.Jsoup;
+import org.junit.Assume;
+import org.junit.Test;
+import org.tinymediamanager.scraper.MediaMetadata;
+import org.tinymediamanager.scraper.MediaScrapeOptions;
+import org.tinymediamanager.scraper.MediaSearchOptions;
+import org.tinymediamanager.scraper.MediaSearchResult;
+import org.tinymediamanager.scraper.entities.Certification;
+import org.tinymediamanager.scraper.entities.MediaCastMember;
+import org.tinymediamanager.scraper.entities.MediaCastMember.CastType;
+import org.tinymediamanager.scraper.entities.MediaGenres;
+import org.tinymediamanager.scraper.entities.MediaType;
+import org.tinymediamanager.scraper.util.MetadataUtil;
+
+/**
+ * Scrape quality and performance regression suite. Runs search and getMetadata for every film of a recorded corpus (see
+ * {@link ZelluloidCorpusRecorder}) against a local stand-in of the site and
+ * <ul>
+ * <li>compares the parsed fields with the golden output of each film - fails if a field is wrong for more films than
+ * allowed</li>
+ * <li>ranks the search results of every film with the {@link SearchRanker} and with the plain
+ * {@link MetadataUtil#calculateScore(String, String)} it replaced - fails if the ranker finds the right film less often</li>
+ * <li>parses all pages of the corpus with the {@link PageDecoder} and the way jsoup read them before - fails if the
+ * decoder allocates more than the tolerance allows; the times are only reported, they are too noisy for a gate</li>
+ * <li>measures latency and allocation of search and scrape per film - fails if the totals exceed the baseline by more
+ * than the tolerance, if a baseline has been recorded on this machine</li>
+ * </ul>
+ * The comparisons with the previous code paths run in the same JVM on the same pages, so they hold on any machine; the
+ * baseline is machine specific and therefore not part of the corpus.<br>
+ * <br>
+ * {@link #testCorpus()} needs a corpus recorded from the live site and is skipped without one.
+ * {@link #testHarness()} runs the same checks on a small hand-written sample (src/test/resources/corpus-sample) whose
+ * golden files have been generated by the scraper itself; it only makes sure the harness works and says nothing about
+ * the scrape quality on real pages.<br>
+ * <br>
+ * System properties:
+ * <ul>
+ * <li>zelluloid.corpus - the recorded corpus directory (default src/test/resources/corpus)</li>
+ * <li>zelluloid.regression.maxMismatches - allowed ratio of films with a wrong field, per field (default 0)</li>
+ * <li>zelluloid.regression.latencyTolerance / allocationTolerance - allowed growth over the baseline (latency) or over
+ * the previous code path and the baseline (allocation) (default 0.5 / 0.25)</li>
+ * <li>zelluloid.regression.updateGolden / updateBaseline - (re)write the golden files / the baseline from this run</li>
+ * </ul>
+ */
+public class ZelluloidRegressionTest {
+  private static final String[] FIELDS              = { "search", "title", "originalTitle", "year", "runtime", "certification", "rating",
+      "genres", "actors", "firstActor", "director", "imdb" };
+  private static final int      PASSES              = 3;
+  // every page is parsed that often per decoding pass, so the times are well above the timer resolution
+  private static final int      DECODE_ROUNDS       = 20;
+
+  private final Path            corpus              = Paths.get(System.getProperty("zelluloid.corpus", "src/test/resources/corpus"));
+  private final Path            sample              = Paths.get("src/test/resources/corpus-sample");
+  private final double          maxMismatches       = Double.parseDouble(System.getProperty("zelluloid.regression.maxMismatches", "0"));
+  private final double          latencyTolerance    = Double.parseDouble(System.getProperty("zelluloid.regression.latencyTolerance", "0.5"));
+  private final double          allocationTolerance = Double.parseDouble(System.getProperty("zelluloid.regression.allocationTolerance", "0.25"));
+
+  @Test
+  public void testCorpus() throws Exception {
+    Assume.assumeTrue(!loadGoldens(corpus).isEmpty());
+    check(corpus);
+  }
+
+  @Test
+  public void testHarness() throws Exception {
+    check(sample);
+  }
+
+  private void check(Path corpus) throws Exception {
+    Map<String, Properties> goldens = loadGoldens(corpus);
+    assertThat(goldens).isNotEmpty();
+
+    try (LocalZelluloidServer server = new LocalZelluloidServer()) {
+      Map<String, byte[]> pages = loadPages(corpus, server);
+      List<String> failures = new ArrayList<>();
+      List<String> summary = new ArrayList<>();
+
+      // completeness
+      Map<String, Properties> actuals = new LinkedHashMap<>();
+      ZelluloidContext context = new ZelluloidContext(server.getBaseUrl());
+      for (Map.Entry<String, Properties> golden : goldens.entrySet()) {
+        actuals.put(golden.getKey(), scrape(new ZelluloidMetadataProvider(context), golden.getValue()));
+      }
+      context.shutdown();
+
+      if (Boolean.getBoolean("zelluloid.regression.updateGolden")) {
+        for (Map.Entry<String, Properties> actual : actuals.entrySet()) {
+          store(actual.getValue(), corpus.resolve("golden").resolve(actual.getKey() + ".properties"),
+              "golden output for zelluloid id " + actual.getKey());
+        }
+        goldens = loadGoldens(corpus);
+      }
+
+      for (String field : FIELDS) {
+        List<String> mismatches = new ArrayList<>();
+        int checked = 0;
+        for (Map.Entry<String, Properties> golden : goldens.entrySet()) {
+          String expected = golden.getValue().getProperty(field);
+          if (expected == null) {
+            continue;
+          }
+          checked++;
+          String actual = actuals.get(golden.getKey()).getProperty(field);
+          if (!expected.equals(actual)) {
+            mismatches.add(golden.getKey() + " (expected '" + expected + "', got '" + actual + "')");
+          }
+        }
+        summary.add(field + " " + (checked - mismatches.size()) + "/" + checked);
+        if (checked > 0 && (double) mismatches.size() / checked > maxMismatches) {
+          failures.add(field + ": " + mismatches);
+        }
+      }
+
+      checkScoring(server, goldens, failures, summary);
+      checkDecoding(pages, failures, summary);
+
+      // latency and allocation - every pass with a cold context, so nothing is served from the caches
+      Map<String, long[]> latencies = new LinkedHashMap<>();
+      Map<String, long[]> allocations = new LinkedHashMap<>();
+      for (String id : goldens.keySet()) {
+        latencies.put(id, new long[PASSES]);
+        allocations.put(id, new long[PASSES]);
+      }
+      for (int pass = -1; pass < PASSES; pass++) {
+        context = new ZelluloidContext(server.getBaseUrl());
+        ZelluloidMetadataProvider mp = new ZelluloidMetadataProvider(context);
+        for (Map.Entry<String, Properties> golden : goldens.entrySet()) {
+          Map<Long, Long> allocated = allocatedBytes();
+          long start = System.nanoTime();
+          scrape(mp, golden.getValue());
+          if (pass >= 0) { // the first pass only warms up
+            latencies.get(golden.getKey())[pass] = (System.nanoTime() - start) / 1000000;
+            allocations.get(golden.getKey())[pass] = allocatedSince(allocated);
+          }
+        }
+        context.shutdown();
+      }
+
+      Properties measured = new Properties();
+      long totalLatency = 0;
+      long totalAllocation = 0;
+      for (String id : goldens.keySet()) {
+        long latency = median(latencies.get(id));
+        long allocation = median(allocations.get(id));
+        measured.setProperty(id + ".latency", String.valueOf(latency));
+        measured.setProperty(id + ".allocation", String.valueOf(allocation));
+        totalLatency += latency;
+        totalAllocation += allocation;
+      }
+      measured.setProperty("latency", String.valueOf(totalLatency));
+      measured.setProperty("allocation", String.valueOf(totalAllocation));
+      summary.add("scrape " + totalLatency + " ms, " + totalAllocation / 1024 + " kb for " + goldens.size() + " films");
+
+      Path baselineFile = corpus.resolve("baseline.properties");
+      if (Boolean.getBoolean("zelluloid.regression.updateBaseline")) {
+        store(measured, baselineFile, "latency (ms) and allocation (bytes) per film, median of " + PASSES + " cold passes");
+      }
+
+      if (Files.exists(baselineFile)) {
+        Properties baseline = load(baselineFile);
+        checkRegression(failures, "latency", totalLatency, Long.parseLong(baseline.getProperty("latency")), latencyTolerance);
+        checkRegression(failures, "allocation", totalAllocation, Long.parseLong(baseline.getProperty("allocation")), allocationTolerance);
+      }
+
+      assertThat(failures).as("%s", StringUtils.join(summary, ", ")).isEmpty();
+    }
+  }
+
+  /**
+   * the search results of every film, ranked by the scraper and by the plain name similarity with the same titles (title
+   * and original title of each result)
+   */
+  private void checkScoring(LocalZelluloidServer server, Map<String, Properties> goldens, List<String> failures, List<String> summary)
+      throws Exception {
+    ZelluloidContext context = new ZelluloidContext(server.getBaseUrl());
+    ZelluloidMetadataProvider mp = new ZelluloidMetadataProvider(context);
+    // the plain score gets the original titles as well
+    mp.setOtherTitleScoring(true);
+    int checked = 0;
+    int rankerHits = 0;
+    int plainHits = 0;
+    for (Properties golden : goldens.values()) {
+      String expected = golden.getProperty("search");
+      if (StringUtils.isBlank(expected)) {
+        continue;
+      }
+      checked++;
+
+      List<MediaSearchResult> results = mp.search(new MediaSearchOptions(MediaType.MOVIE, golden.getProperty("query")));
+      if (!results.isEmpty() && expected.equals(results.get(0).getId())) {
+        rankerHits++;
+      }
+
+      String searchTerm = MetadataUtil.removeNonSearchCharacters(golden.getProperty("query"));
+      String best = null;
+      float bestScore = -1;
+      for (MediaSearchResult result : results) {
+        float score = MetadataUtil.calculateScore(searchTerm, result.getTitle());
+        if (StringUtils.isNotBlank(result.getOriginalTitle())) {
+          score = Math.max(score, MetadataUtil.calculateScore(searchTerm, result.getOriginalTitle()));
+        }
+        if (score > bestScore) {
+          bestScore = score;
+          best = result.getId();
+        }
+      }
+      if (expected.equals(best)) {
+        plainHits++;
+      }
+    }
+    context.shutdown();
+
+    summary.add("top-1 search plain " + plainHits + "/" + checked + ", ranker " + rankerHits + "/" + checked);
+    if (rankerHits < plainHits) {
+      failures.add("scoring: the ranker finds " + rankerHits + "/" + checked + " films, the plain score " + plainHits + "/" + checked);
+    }
+  }
+
+  /**
+   * all pages of the corpus, parsed through the {@link PageDecoder} and directly from the stream by jsoup (as before the
+   * decoder); only the allocation is checked, the times are reported
+   */
+  private void checkDecoding(Map<String, byte[]> pages, List<String> failures, List<String> summary) throws Exception {
+    PageDecoder decoder = new PageDecoder();
+    long[] jsoupLatencies = new long[PASSES];
+    long[] jsoupAllocations = new long[PASSES];
+    long[] decoderLatencies = new long[PASSES];
+    long[] decoderAllocations = new long[PASSES];
+    for (int pass = -1; pass < PASSES; pass++) {
+      Map<Long, Long> allocated = allocatedBytes();
+      long start = System.nanoTime();
+      for (int i = 0; i < DECODE_ROUNDS; i++) {
+        for (byte[] page : pages.values()) {
+          Jsoup.parse(new ByteArrayInputStream(page), ZelluloidMetadataProvider.PAGE_ENCODING, "");
+        }
+      }
+      long jsoupLatency = System.nanoTime() - start;
+      long jsoupAllocation = allocatedSince(allocated);
+
+      allocated = allocatedBytes();
+      start = System.nanoTime();
+      for (int i = 0; i < DECODE_ROUNDS; i++) {
+        for (byte[] page : pages.values()) {
+          Jsoup.parse(decoder.decode(new ByteArrayInputStream(page), page.length, "iso-8859-1", ZelluloidMetadataProvider.PAGE_ENCODING),
+              "");
+        }
+      }
+      if (pass >= 0) { // the first pass only warms up
+        decoderLatencies[pass] = System.nanoTime() - start;
+        decoderAllocations[pass] = allocatedSince(allocated);
+        jsoupLatencies[pass] = jsoupLatency;
+        jsoupAllocations[pass] = jsoupAllocation;
+      }
+    }
+
+    int parsed = pages.size() * DECODE_ROUNDS;
+    summary.add("decoding per page jsoup " + median(jsoupLatencies) / parsed / 1000 + " us, " + median(jsoupAllocations) / parsed / 1024
+        + " kb, decoder " + median(decoderLatencies) / parsed / 1000 + " us, " + median(decoderAllocations) / parsed / 1024 + " kb");
+    checkRegression(failures, "decoding allocation", median(decoderAllocations), median(jsoupAllocations), allocationTolerance);
+  }
+
+  /**
+   * searches and scrapes one film and returns the fields as in the golden files
+   */
+  private Properties scrape(ZelluloidMetadataProvider mp, Properties golden) throws Exception {
+    Properties actual = new Properties();
+    String id = golden.getProperty("id");
+    actual.setProperty("id", id);
+    actual.setProperty("query", golden.getProperty("query"));
+
+    List<MediaSearchResult> results = mp.search(new MediaSearchOptions(MediaType.MOVIE, golden.getProperty("query")));
+    actual.setProperty("search", results.isEmpty() ? "" : results.get(0).getId());
+
+    MediaScrapeOptions scop = new MediaScrapeOptions(MediaType.MOVIE);
+    scop.setId(mp.getProviderInfo().getId(), id);
+    MediaMetadata md = mp.getMetadata(scop);
+    actual.setProperty("title", md.getTitle());
+    actual.setProperty("originalTitle", md.getOriginalTitle());
+    actual.setProperty("year", String.valueOf(md.getYear()));
+    actual.setProperty("runtime", String.valueOf(md.getRuntime()));
+    actual.setProperty("rating", String.valueOf(md.getRating()));
+
+    List<String> values = new ArrayList<>();
+    for (Certification cert : md.getCertifications()) {
+      values.add(cert.name());
+    }
+    actual.setProperty("certification", StringUtils.join(values, ','));
+
+    values.clear();
+    for (MediaGenres genre : md.getGenres()) {
+      values.add(genre.name());
+    }
+    actual.setProperty("genres", StringUtils.join(values, ','));
+
+    List<MediaCastMember> actors = md.getCastMembers(CastType.ACTOR);
+    actual.setProperty("actors", String.valueOf(actors.size()));
+    actual.setProperty("firstActor", actors.isEmpty() ? "" : actors.get(0).getName());
+
+    values.clear();
+    for (MediaCastMember director : md.getCastMembers(CastType.DIRECTOR)) {
+      values.add(director.getName());
+    }
+    actual.setProperty("director", StringUtils.join(values, ','));
+
+    Object imdb = md.getId(MediaMetadata.IMDB);
+    actual.setProperty("imdb", imdb == null ? "" : imdb.toString());
+    return actual;
+  }
+
+  private void checkRegression(List<String> failures, String name, long value, long allowed, double tolerance) {
+    long limit = (long) (allowed * (1 + tolerance));
+    if (value > limit) {
+      failures.add(name + ": " + value + " exceeds " + limit + " (reference " + allowed + ", tolerance " + tolerance + ")");
+    }
+  }
+
+  /**
+   * the pages of the corpus are named after their url encoded path and query, like %2Ffilme%2Findex.php3%3Fid%3D886.html
+   */
+  private Map<String, byte[]> loadPages(Path corpus, LocalZelluloidServer server) throws Exception {
+    Map<String, byte[]> pages = new LinkedHashMap<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(corpus.resolve("pages"), "*.html")) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        pages.put(URLDecoder.decode(name.substring(0, name.length() - 5), "UTF-8"), Files.readAllBytes(file));
+      }
+    }
+    for (Map.Entry<String, byte[]> page : pages.entrySet()) {
+      server.addPage(page.getKey(), page.getValue());
+    }
+    return pages;
+  }
+
+  private Map<String, Properties> loadGoldens(Path corpus) throws Exception {
+    Map<String, Properties> goldens = new LinkedHashMap<>();
+    Path dir = corpus.resolve("golden");
+    if (!Files.isDirectory(dir)) {
+      return goldens;
+    }
+
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.properties")) {
+      for (Path file : stream) {
+        files.add(file);
+      }
+    }
+    Path[] sorted = files.toArray(new Path[files.size()]);
+    Arrays.sort(sorted);
+    for (Path file : sorted) {
+      Properties golden = load(file);
+      goldens.put(golden.getProperty("id"), golden);
+    }
+    return goldens;
+  }
+
+  private Properties load(Path file) throws Exception {
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(file)) {
+      properties.load(in);
+    }
+    return properties;
+  }
+
+  private void store(Properties properties, Path file, String comment) throws Exception {
+    try (OutputStream out = Files.newOutputStream(file)) {
+      properties.store(out, comment);
+    }
+  }
+
+  /**
+   * allocated bytes per live thread (the scraper works in its own pools)
+   */
+  private Map<Long, Long> allocatedBytes() {
+    Map<Long, Long> allocated = new HashMap<>();
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return allocated;
+    }
+    com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) bean;
+    if (!mxBean.isThreadAllocatedMemorySupported()) {
+      return allocated;
+    }
+    mxBean.setThreadAllocatedMemoryEnabled(true);
+
+    long[] ids = mxBean.getAllThreadIds();
+    long[] bytes = mxBean.getThreadAllocatedBytes(ids);
+    for (int i = 0; i < ids.length; i++) {
+      if (bytes[i] > 0) {
+        allocated.put(ids[i], bytes[i]);
+      }
+    }
+    return allocated;
+  }
+
+  /**
+   * the bytes allocated in between (threads which died in between are missing)
+   */
+  private long allocatedSince(Map<Long, Long> before) {
+    long sum = 0;
+    for (Map.Entry<Long, Long> after : allocatedBytes().entrySet()) {
+      Long start = before.get(after.getKey());
+      sum += after.getValue() - (start == null ? 0 : start);
+    }
+    return sum;
+  }
+
+  private long median(long[] values) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+}
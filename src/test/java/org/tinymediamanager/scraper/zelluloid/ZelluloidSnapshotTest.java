@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.tinymediamanager.scraper.entities.MediaTrailer;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidFetcher.CachedPage;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidPersonCache.Person;
+
+public class ZelluloidSnapshotTest {
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    ZelluloidContext context = new ZelluloidContext(ZelluloidMetadataProvider.BASE_URL);
+    String url = ZelluloidMetadataProvider.BASE_URL + "/filme/index.php3?id=886";
+    context.getFetcher().putCachedPage(url, new CachedPage("<html>Twelve Monkeys</html>", System.currentTimeMillis()));
+    context.getFetcher().putCachedPage(url + "0", new CachedPage("<html>expired</html>", 0));
+
+    Person person = new Person("42", System.currentTimeMillis());
+    person.imageUrl = ZelluloidMetadataProvider.BASE_URL + "/images/person/42.jpg";
+    context.getPersonCache().putPerson(person);
+
+    MediaTrailer trailer = new MediaTrailer();
+    trailer.setName("Trailer");
+    trailer.setUrl("https://www.youtube.com/watch?v=abc");
+    trailer.setQuality("unknown");
+    trailer.setProvider("youtube");
+    context.getTrailerCache().put("886", Collections.singletonList(trailer));
+
+    Path file = Files.createTempFile("zelluloid", ".snapshot");
+    try {
+      context.saveSnapshot(file);
+      context.shutdown();
+
+      // a fresh context (like a new process) starts warm
+      ZelluloidContext restored = new ZelluloidContext(ZelluloidMetadataProvider.BASE_URL);
+      assertThat(restored.loadSnapshot(file)).isTrue();
+      assertThat(restored.getFetcher().getCachedPages()).containsKey(url).doesNotContainKey(url + "0");
+      assertThat(restored.getFetcher().getCachedPages().get(url).html).isEqualTo("<html>Twelve Monkeys</html>");
+      assertThat(restored.getPersonCache().get("42").get().imageUrl).isEqualTo(person.imageUrl);
+      // keeps its age, so it expires as if it had never been saved
+      assertThat(restored.getPersonCache().get("42").get().fetched).isEqualTo(person.fetched);
+      assertThat(restored.getTrailerCache().get("886")).hasSize(1);
+      assertThat(restored.getTrailerCache().get("886").get(0).getUrl()).isEqualTo(trailer.getUrl());
+      restored.shutdown();
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testInvalidSnapshot() throws Exception {
+    Path file = Files.createTempFile("zelluloid", ".snapshot");
+    try {
+      Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+      assertThat(ZelluloidSnapshot.load(file)).isFalse();
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testCorruptSnapshot() throws Exception {
+    ZelluloidContext context = new ZelluloidContext(ZelluloidMetadataProvider.BASE_URL);
+    context.getFetcher().putCachedPage(ZelluloidMetadataProvider.BASE_URL + "/filme/index.php3?id=886",
+        new CachedPage("<html>Twelve Monkeys</html>", System.currentTimeMillis()));
+    Path file = Files.createTempFile("zelluloid", ".snapshot");
+    try {
+      context.saveSnapshot(file);
+      byte[] bytes = Files.readAllBytes(file);
+
+      // a huge string length right after the page count
+      ByteBuffer.wrap(bytes).putInt(12, Integer.MAX_VALUE - 8);
+      Files.write(file, bytes);
+      assertThat(ZelluloidSnapshot.load(new ZelluloidContext(ZelluloidMetadataProvider.BASE_URL), file)).isFalse();
+
+      // a huge page count
+      ByteBuffer.wrap(bytes).putInt(8, Integer.MAX_VALUE);
+      Files.write(file, bytes);
+      assertThat(ZelluloidSnapshot.load(new ZelluloidContext(ZelluloidMetadataProvider.BASE_URL), file)).isFalse();
+
+      // truncated
+      context.saveSnapshot(file);
+      bytes = Files.readAllBytes(file);
+      Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+      assertThat(ZelluloidSnapshot.load(new ZelluloidContext(ZelluloidMetadataProvider.BASE_URL), file)).isFalse();
+
+      // the file is not held open - it can be replaced right away
+      assertThat(ZelluloidSnapshot.load(context, file)).isFalse();
+      context.saveSnapshot(file);
+      assertThat(ZelluloidSnapshot.load(context, file)).isTrue();
+      context.shutdown();
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testRejectedSnapshotLeavesContextUnchanged() throws Exception {
+    ZelluloidContext context = new ZelluloidContext(ZelluloidMetadataProvider.BASE_URL);
+    String url = ZelluloidMetadataProvider.BASE_URL + "/filme/index.php3?id=886";
+    context.getFetcher().putCachedPage(url, new CachedPage("<html>Twelve Monkeys</html>", System.currentTimeMillis()));
+    context.getPersonCache().putPerson(new Person("42", System.currentTimeMillis()));
+    context.getTrailerCache().put("886", Collections.<MediaTrailer> emptyList());
+
+    ZelluloidContext target = new ZelluloidContext(ZelluloidMetadataProvider.BASE_URL);
+    String own = ZelluloidMetadataProvider.BASE_URL + "/filme/index.php3?id=1957";
+    target.getFetcher().putCachedPage(own, new CachedPage("<html>Das Boot</html>", System.currentTimeMillis()));
+
+    Path file = Files.createTempFile("zelluloid", ".snapshot");
+    try {
+      context.saveSnapshot(file);
+      byte[] bytes = Files.readAllBytes(file);
+
+      // everything but the last section is intact
+      Files.write(file, Arrays.copyOf(bytes, bytes.length - 2));
+      assertThat(ZelluloidSnapshot.load(target, file)).isFalse();
+      assertThat(target.getFetcher().getCachedPages()).containsOnlyKeys(own);
+      assertThat(target.getPersonCache().getPersons()).isEmpty();
+      assertThat(target.getTrailerCache().size()).isEqualTo(0);
+
+      // trailing garbage
+      Files.write(file, Arrays.copyOf(bytes, bytes.length + 4));
+      assertThat(ZelluloidSnapshot.load(target, file)).isFalse();
+      assertThat(target.getFetcher().getCachedPages()).containsOnlyKeys(own);
+      assertThat(target.getPersonCache().getPersons()).isEmpty();
+      assertThat(target.getTrailerCache().size()).isEqualTo(0);
+
+      // the intact file is applied
+      Files.write(file, bytes);
+      assertThat(ZelluloidSnapshot.load(target, file)).isTrue();
+      assertThat(target.getFetcher().getCachedPages()).containsOnlyKeys(own, url);
+      assertThat(target.getPersonCache().getPersons()).hasSize(1);
+      assertThat(target.getTrailerCache().size()).isEqualTo(1);
+    }
+    finally {
+      context.shutdown();
+      target.shutdown();
+      Files.deleteIfExists(file);
+    }
+  }
+}
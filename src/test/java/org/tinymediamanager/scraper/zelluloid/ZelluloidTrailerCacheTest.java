@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.zelluloid;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.tinymediamanager.scraper.entities.MediaTrailer;
+import org.tinymediamanager.scraper.zelluloid.ZelluloidTrailerCache.Trailers;
+
+public class ZelluloidTrailerCacheTest {
+  private static final List<MediaTrailer> TRAILERS = Collections.singletonList(new MediaTrailer());
+
+  @Test
+  public void testMaxSize() {
+    ZelluloidTrailerCache cache = new ZelluloidTrailerCache(10);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 25; i++) {
+      cache.putTrailers(new Trailers(String.valueOf(i), TRAILERS, now + i));
+    }
+
+    // the oldest ones are gone
+    assertThat(cache.size()).isLessThanOrEqualTo(10);
+    assertThat(cache.getTrailers()).isNotEmpty();
+    for (Trailers trailers : cache.getTrailers()) {
+      assertThat(Integer.parseInt(trailers.id)).isGreaterThanOrEqualTo(15);
+    }
+  }
+
+  @Test
+  public void testExpiry() {
+    ZelluloidTrailerCache cache = new ZelluloidTrailerCache(10);
+    long now = System.currentTimeMillis();
+    cache.putTrailers(new Trailers("1", TRAILERS, now - ZelluloidTrailerCache.TRAILER_TTL - 1));
+    cache.putTrailers(new Trailers("2", TRAILERS, now - ZelluloidTrailerCache.NO_TRAILER_TTL - 1));
+    // no trailers (yet) - asked again much earlier
+    cache.putTrailers(new Trailers("3", Collections.<MediaTrailer> emptyList(), now - ZelluloidTrailerCache.NO_TRAILER_TTL - 1));
+    cache.put("4", Collections.<MediaTrailer> emptyList());
+
+    assertThat(cache.get("1")).isNull();
+    assertThat(cache.get("2")).hasSize(1);
+    assertThat(cache.get("3")).isNull();
+    assertThat(cache.get("4")).isEmpty();
+    assertThat(cache.getTrailers()).hasSize(2);
+  }
+}